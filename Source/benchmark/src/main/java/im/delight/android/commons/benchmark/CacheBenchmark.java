@@ -0,0 +1,182 @@
+package im.delight.android.commons.benchmark;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.commons.Cache;
+import im.delight.android.commons.ConcurrentLruCache;
+import im.delight.android.commons.LruCache;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of `get(...)` and `put(...)` on the caches under contention
+ *
+ * Each combination of implementation, key distribution and ratio of reads to writes is measured with one thread, four threads and as many threads as there are processors
+ *
+ * The sample mode reports the latency percentiles, so that regressions in the tail are visible even if the average does not change
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+
+	private static final int CACHE_SIZE = 10000;
+	/** The number of distinct keys, so that the cache can hold about a quarter of them */
+	private static final int KEY_SPACE = CACHE_SIZE * 4;
+	/** The number of precomputed operations, which must be a power of two */
+	private static final int OPERATIONS = 1 << 20;
+	private static final int OPERATIONS_MASK = OPERATIONS - 1;
+	private static final long SEED = 42;
+
+	// the parameters are public and have plain names because JMH sets them by name, e.g. `-p distribution=zipfian`
+
+	@Param({ "Cache", "LruCache", "ConcurrentLruCache" })
+	public String implementation;
+
+	@Param({ "uniform", "zipfian" })
+	public String distribution;
+
+	/** The share of writes, which is 10% for `read_heavy`, 50% for `mixed` and 90% for `write_heavy` */
+	@Param({ "read_heavy", "mixed", "write_heavy" })
+	public String workload;
+
+	private Cache<Integer, Integer> mCache;
+	private Integer[] mKeys;
+	private boolean[] mWrites;
+
+	/** The position of each thread in the precomputed operations */
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		private int mIndex;
+
+		@Setup
+		public void setUp() {
+			// start at a different position in every thread so that the threads do not request the same keys at the same time
+			mIndex = new Random().nextInt(OPERATIONS);
+		}
+
+		int next() {
+			return mIndex++ & OPERATIONS_MASK;
+		}
+
+	}
+
+	@Setup
+	public void setUp() {
+		mCache = createCache(implementation);
+
+		if (distribution.equals("uniform")) {
+			mKeys = KeyDistribution.uniform(OPERATIONS, KEY_SPACE, SEED);
+		}
+		else if (distribution.equals("zipfian")) {
+			mKeys = KeyDistribution.zipfian(OPERATIONS, KEY_SPACE, SEED);
+		}
+		else {
+			throw new RuntimeException("Unknown distribution: "+distribution);
+		}
+
+		final int writePercentage = writePercentage(workload);
+		final Random random = new Random(SEED);
+		mWrites = new boolean[OPERATIONS];
+		for (int i = 0; i < OPERATIONS; i++) {
+			mWrites[i] = random.nextInt(100) < writePercentage;
+		}
+
+		// start with a full cache so that the measurements do not include the warm-up of the cache itself
+		for (int i = 0; i < OPERATIONS && mCache.size() < CACHE_SIZE; i++) {
+			mCache.put(mKeys[i], mKeys[i]);
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Integer singleThread(final Cursor cursor) {
+		return operate(cursor);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Integer fourThreads(final Cursor cursor) {
+		return operate(cursor);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public Integer maxThreads(final Cursor cursor) {
+		return operate(cursor);
+	}
+
+	/** Performs the next operation, where the result is returned so that JMH consumes it and the call cannot be eliminated */
+	private Integer operate(final Cursor cursor) {
+		final int index = cursor.next();
+		final Integer key = mKeys[index];
+
+		if (mWrites[index]) {
+			return mCache.put(key, key);
+		}
+		else {
+			return mCache.get(key);
+		}
+	}
+
+	private static Cache<Integer, Integer> createCache(final String implementation) {
+		if (implementation.equals("Cache")) {
+			return new Cache<Integer, Integer>(CACHE_SIZE);
+		}
+		else if (implementation.equals("LruCache")) {
+			return new LruCache<Integer, Integer>(CACHE_SIZE);
+		}
+		else if (implementation.equals("ConcurrentLruCache")) {
+			return new ConcurrentLruCache<Integer, Integer>(CACHE_SIZE);
+		}
+		else {
+			throw new RuntimeException("Unknown implementation: "+implementation);
+		}
+	}
+
+	private static int writePercentage(final String workload) {
+		if (workload.equals("read_heavy")) {
+			return 10;
+		}
+		else if (workload.equals("mixed")) {
+			return 50;
+		}
+		else if (workload.equals("write_heavy")) {
+			return 90;
+		}
+		else {
+			throw new RuntimeException("Unknown workload: "+workload);
+		}
+	}
+
+}
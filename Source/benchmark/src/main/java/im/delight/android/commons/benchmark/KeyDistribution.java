@@ -0,0 +1,91 @@
+package im.delight.android.commons.benchmark;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Sequences of keys that are drawn from a fixed key space with a given distribution */
+public final class KeyDistribution {
+
+	/** The skew of the Zipfian distribution, where a few keys are requested very often and most keys are requested rarely */
+	public static final double ZIPFIAN_EXPONENT = 0.99;
+
+	private KeyDistribution() { }
+
+	/**
+	 * Returns a sequence of keys that are all requested with the same probability
+	 *
+	 * @param length the number of keys to return
+	 * @param keySpace the number of distinct keys
+	 * @param seed the seed for the random numbers
+	 * @return the sequence of keys
+	 */
+	public static Integer[] uniform(final int length, final int keySpace, final long seed) {
+		final Random random = new Random(seed);
+		final Integer[] out = new Integer[length];
+
+		for (int i = 0; i < length; i++) {
+			out[i] = random.nextInt(keySpace);
+		}
+
+		return out;
+	}
+
+	/**
+	 * Returns a sequence of keys where the probability of the key with rank `n` is proportional to `1 / n^ZIPFIAN_EXPONENT`
+	 *
+	 * The ranks are mapped to keys in a random order, so that the popular keys are not adjacent
+	 *
+	 * @param length the number of keys to return
+	 * @param keySpace the number of distinct keys
+	 * @param seed the seed for the random numbers
+	 * @return the sequence of keys
+	 */
+	public static Integer[] zipfian(final int length, final int keySpace, final long seed) {
+		final Random random = new Random(seed);
+
+		// the cumulative distribution over the ranks
+		final double[] cumulative = new double[keySpace];
+		double sum = 0;
+		for (int rank = 0; rank < keySpace; rank++) {
+			sum += 1 / Math.pow(rank + 1, ZIPFIAN_EXPONENT);
+			cumulative[rank] = sum;
+		}
+
+		final int[] keysByRank = new int[keySpace];
+		for (int i = 0; i < keySpace; i++) {
+			final int j = random.nextInt(i + 1);
+			keysByRank[i] = keysByRank[j];
+			keysByRank[j] = i;
+		}
+
+		final Integer[] out = new Integer[length];
+
+		for (int i = 0; i < length; i++) {
+			int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+			if (rank < 0) {
+				rank = -rank - 1;
+			}
+
+			out[i] = keysByRank[Math.min(rank, keySpace - 1)];
+		}
+
+		return out;
+	}
+
+}
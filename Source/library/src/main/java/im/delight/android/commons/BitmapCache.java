@@ -0,0 +1,106 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.graphics.Bitmap;
+
+/**
+ * LRU (least recently used) cache of bitmaps that is limited by the total size of the bitmaps in bytes
+ *
+ * Bitmaps that are dropped due to the size limit or that expire are returned to a `BitmapPool`, so that their memory can be reused
+ *
+ * Bitmaps that are removed or replaced manually are not returned to the pool, as they are passed back to the caller
+ *
+ * If a second level is set through `spillTo(...)`, dropped bitmaps are not returned to the pool either, as they are still written to the second level afterwards
+ *
+ * You must thus not hold on to bitmaps from this cache beyond their immediate use, e.g. while drawing them
+ *
+ * This implementation is thread-safe
+ *
+ * @param <K> the type of the keys
+ */
+public class BitmapCache<K> extends Cache<K, Bitmap> {
+
+	private final BitmapPool mPool;
+	/** Whether dropped bitmaps are written to a second level, so that they must not be reused */
+	private volatile boolean mSpilling;
+
+	/**
+	 * Creates a new instance with the given maximum size
+	 *
+	 * @param maximumBytes the maximum total size of all bitmaps in bytes
+	 * @param pool the pool to return dropped bitmaps to
+	 */
+	public BitmapCache(final long maximumBytes, final BitmapPool pool) {
+		super(maximumBytes, new Weigher<K, Bitmap>() {
+
+			@Override
+			public int weigh(final K key, final Bitmap value) {
+				return value == null ? 0 : BitmapPool.getByteCount(value);
+			}
+
+		}, true, ADMISSION_ALL);
+
+		if (pool == null) {
+			throw new RuntimeException("pool must not be null");
+		}
+
+		mPool = pool;
+	}
+
+	/**
+	 * Returns the pool that dropped bitmaps are returned to
+	 *
+	 * @return the pool
+	 */
+	public BitmapPool getPool() {
+		return mPool;
+	}
+
+	/**
+	 * Moves bitmaps that are dropped due to the size limit to the given disk cache instead of discarding them
+	 *
+	 * As long as a disk cache is set, bitmaps that are dropped automatically are no longer returned to the pool
+	 *
+	 * @param diskCache the disk cache to use as the second level, or `null`
+	 * @return this instance for chaining
+	 */
+	@Override
+	public Cache<K, Bitmap> spillTo(final DiskCache<K, Bitmap> diskCache) {
+		mSpilling = diskCache != null;
+
+		return super.spillTo(diskCache);
+	}
+
+	/**
+	 * Returns bitmaps that have been dropped automatically to the pool, unless they are written to a second level
+	 *
+	 * If you override this method, you must call through to the superclass implementation
+	 *
+	 * @param key the key that was removed
+	 * @param value the value that was removed
+	 * @param causedManually whether the removal was caused manually (through `put(...)` or `remove(...)`) or automatically
+	 */
+	@Override
+	public void onEntryRemoved(final K key, final Bitmap value, final boolean causedManually) {
+		// a bitmap that is spilled is written only after this has been called, so it must not be reused or recycled here
+		if (!causedManually && value != null && !mSpilling) {
+			mPool.put(value);
+		}
+	}
+
+}
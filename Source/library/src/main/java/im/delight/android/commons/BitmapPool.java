@@ -0,0 +1,376 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of mutable bitmaps that are no longer needed and whose memory can be reused for new bitmaps of a compatible size
+ *
+ * Reusing bitmaps avoids allocating large objects over and over again, which would cause long pauses for garbage collection, e.g. while scrolling
+ *
+ * The pool holds bitmaps up to a maximum total size in bytes and drops (and recycles) the least recently added bitmaps beyond that
+ *
+ * Bitmaps are grouped by their size in bytes, and on Android 4.4 (API level 19) and above, a bitmap may be reused for any smaller size and configuration
+ *
+ * You must not use a bitmap anymore after you have passed it to the pool
+ *
+ * This implementation is thread-safe
+ */
+public final class BitmapPool {
+
+	/** Pooled bitmaps are only reused for requests that need at least this share (in percent) of their memory */
+	private static final int MIN_REUSE_PERCENT = 50;
+	private final long mMaximumBytes;
+	/** The pooled bitmaps grouped by their size in bytes */
+	private final TreeMap<Integer, ArrayList<Bitmap>> mBuckets;
+	/** All pooled bitmaps from the least recently to the most recently added one */
+	private final LinkedHashSet<Bitmap> mOrder;
+	private long mBytes;
+	private long mHitCount;
+	private long mMissCount;
+	private long mEvictionCount;
+
+	/**
+	 * Creates a new pool with the given maximum size
+	 *
+	 * @param maximumBytes the maximum total size of all pooled bitmaps in bytes
+	 */
+	public BitmapPool(final long maximumBytes) {
+		if (maximumBytes < 0) {
+			throw new RuntimeException("maximumBytes must not be negative");
+		}
+
+		mMaximumBytes = maximumBytes;
+		mBuckets = new TreeMap<Integer, ArrayList<Bitmap>>();
+		mOrder = new LinkedHashSet<Bitmap>();
+	}
+
+	/**
+	 * Returns a mutable bitmap with the given size and configuration
+	 *
+	 * The bitmap is taken from the pool and cleared if possible and created otherwise
+	 *
+	 * @param width the width of the bitmap
+	 * @param height the height of the bitmap
+	 * @param config the configuration of the bitmap
+	 * @return a transparent bitmap
+	 */
+	public Bitmap get(final int width, final int height, final Bitmap.Config config) {
+		final Bitmap pooled = take(width, height, config);
+
+		if (pooled != null) {
+			pooled.eraseColor(Color.TRANSPARENT);
+
+			return pooled;
+		}
+		else {
+			return Bitmap.createBitmap(width, height, config);
+		}
+	}
+
+	/**
+	 * Returns the given bitmap to the pool so that its memory can be reused
+	 *
+	 * Bitmaps that are immutable, recycled or too large for the pool are recycled right away
+	 *
+	 * @param bitmap the bitmap that is no longer used
+	 */
+	public void put(final Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) {
+			return;
+		}
+
+		final int size = getByteCount(bitmap);
+
+		if (!bitmap.isMutable() || size > mMaximumBytes) {
+			bitmap.recycle();
+
+			return;
+		}
+
+		synchronized (this) {
+			if (!mOrder.add(bitmap)) {
+				return;
+			}
+
+			ArrayList<Bitmap> bucket = mBuckets.get(size);
+			if (bucket == null) {
+				bucket = new ArrayList<Bitmap>();
+				mBuckets.put(size, bucket);
+			}
+
+			bucket.add(bitmap);
+			mBytes += size;
+
+			trimToSize(mMaximumBytes);
+		}
+	}
+
+	/**
+	 * Decodes the image from the given file and reuses the memory of a pooled bitmap if possible
+	 *
+	 * @param pathName the path of the image file
+	 * @return the decoded bitmap or `null` if the image could not be decoded
+	 */
+	public Bitmap decodeFile(final String pathName) {
+		return decode(new Decoder() {
+
+			@Override
+			public Bitmap decode(final BitmapFactory.Options options) {
+				return BitmapFactory.decodeFile(pathName, options);
+			}
+
+		});
+	}
+
+	/**
+	 * Decodes the image from the given data and reuses the memory of a pooled bitmap if possible
+	 *
+	 * @param data the encoded image
+	 * @param offset the offset of the image in the data
+	 * @param length the length of the image in bytes
+	 * @return the decoded bitmap or `null` if the image could not be decoded
+	 */
+	public Bitmap decodeByteArray(final byte[] data, final int offset, final int length) {
+		return decode(new Decoder() {
+
+			@Override
+			public Bitmap decode(final BitmapFactory.Options options) {
+				return BitmapFactory.decodeByteArray(data, offset, length, options);
+			}
+
+		});
+	}
+
+	/** Removes and recycles all pooled bitmaps */
+	public synchronized void clear() {
+		trimToSize(0);
+	}
+
+	/**
+	 * Returns the number of requests that have been served from the pool
+	 *
+	 * @return the number of hits
+	 */
+	public synchronized long getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * Returns the number of requests that could not be served from the pool
+	 *
+	 * @return the number of misses
+	 */
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * Returns the number of pooled bitmaps that have been dropped to stay within the maximum size
+	 *
+	 * @return the number of evictions
+	 */
+	public synchronized long getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	/**
+	 * Returns the current total size of all pooled bitmaps
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized long getSizeInBytes() {
+		return mBytes;
+	}
+
+	/**
+	 * Returns the maximum total size of all pooled bitmaps
+	 *
+	 * @return the size in bytes
+	 */
+	public long getMaximumBytes() {
+		return mMaximumBytes;
+	}
+
+	/**
+	 * Returns the number of bytes that the given bitmap occupies in memory
+	 *
+	 * @param bitmap the bitmap to measure
+	 * @return the size in bytes
+	 */
+	@SuppressLint("NewApi")
+	public static int getByteCount(final Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= 19) {
+			return bitmap.getAllocationByteCount();
+		}
+		else {
+			return bitmap.getRowBytes() * bitmap.getHeight();
+		}
+	}
+
+	/** Removes a pooled bitmap that can be used for the given size and configuration from the pool, or returns `null` */
+	@SuppressLint("NewApi")
+	private synchronized Bitmap take(final int width, final int height, final Bitmap.Config config) {
+		final int size = width * height * getBytesPerPixel(config);
+
+		if (Build.VERSION.SDK_INT >= 19) {
+			// any bitmap that is large enough can be reconfigured, but do not waste large bitmaps on small requests
+			final long limit = (long) size * 100 / MIN_REUSE_PERCENT;
+
+			for (Map.Entry<Integer, ArrayList<Bitmap>> entry : mBuckets.tailMap(size).entrySet()) {
+				if (entry.getKey() > limit) {
+					break;
+				}
+
+				// take the most recently added bitmap, which is the last one in the bucket
+				final ArrayList<Bitmap> bucket = entry.getValue();
+				final Bitmap bitmap = removeFromBucket(entry.getKey(), bucket, bucket.size() - 1);
+				bitmap.reconfigure(width, height, config);
+				mHitCount++;
+
+				return bitmap;
+			}
+		}
+		else {
+			// older versions can only reuse bitmaps with exactly the same dimensions and configuration
+			final ArrayList<Bitmap> bucket = mBuckets.get(size);
+
+			if (bucket != null) {
+				for (int i = 0; i < bucket.size(); i++) {
+					final Bitmap bitmap = bucket.get(i);
+
+					if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+						removeFromBucket(size, bucket, i);
+						mHitCount++;
+
+						return bitmap;
+					}
+				}
+			}
+		}
+
+		mMissCount++;
+
+		return null;
+	}
+
+	/** Removes the bitmap at the given position in the given bucket from the pool (requires the monitor) */
+	private Bitmap removeFromBucket(final int size, final ArrayList<Bitmap> bucket, final int index) {
+		final Bitmap bitmap = bucket.remove(index);
+
+		if (bucket.isEmpty()) {
+			mBuckets.remove(size);
+		}
+
+		mOrder.remove(bitmap);
+		mBytes -= size;
+
+		return bitmap;
+	}
+
+	/** Drops the least recently added bitmaps until the pool fits into the given size (requires the monitor) */
+	private void trimToSize(final long maximumBytes) {
+		final Iterator<Bitmap> iterator = mOrder.iterator();
+
+		while (mBytes > maximumBytes && iterator.hasNext()) {
+			final Bitmap bitmap = iterator.next();
+			iterator.remove();
+
+			final int size = getByteCount(bitmap);
+			final ArrayList<Bitmap> bucket = mBuckets.get(size);
+			bucket.remove(bitmap);
+
+			if (bucket.isEmpty()) {
+				mBuckets.remove(size);
+			}
+
+			mBytes -= size;
+			mEvictionCount++;
+			bitmap.recycle();
+		}
+	}
+
+	/** Decodes an image into a pooled bitmap if possible and falls back to a new bitmap otherwise */
+	@SuppressLint("NewApi")
+	private Bitmap decode(final Decoder decoder) {
+		// reusing bitmaps for decoding is not supported before Android 3.0
+		if (Build.VERSION.SDK_INT < 11) {
+			return decoder.decode(null);
+		}
+
+		final BitmapFactory.Options bounds = new BitmapFactory.Options();
+		bounds.inJustDecodeBounds = true;
+		decoder.decode(bounds);
+
+		if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+			return null;
+		}
+
+		final Bitmap.Config config = Bitmap.Config.ARGB_8888;
+		final Bitmap reusable = take(bounds.outWidth, bounds.outHeight, config);
+
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inMutable = true;
+		options.inPreferredConfig = config;
+		options.inBitmap = reusable;
+
+		try {
+			return decoder.decode(options);
+		}
+		// the pooled bitmap may still be incompatible with the image, e.g. due to its format on older versions
+		catch (IllegalArgumentException e) {
+			if (reusable == null) {
+				throw e;
+			}
+
+			put(reusable);
+			options.inBitmap = null;
+
+			return decoder.decode(options);
+		}
+	}
+
+	private static int getBytesPerPixel(final Bitmap.Config config) {
+		if (config == Bitmap.Config.ALPHA_8) {
+			return 1;
+		}
+		else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+			return 2;
+		}
+		else {
+			return 4;
+		}
+	}
+
+	/** Decodes an image with the given options */
+	private static interface Decoder {
+
+		public Bitmap decode(BitmapFactory.Options options);
+
+	}
+
+}
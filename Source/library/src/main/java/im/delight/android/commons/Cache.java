@@ -16,26 +16,144 @@ package im.delight.android.commons;
  * limitations under the License.
  */
 
-import java.util.Set;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Cache that can hold a fixed number of elements in memory
  *
  * If the cache is full and a new entry is added, the oldest entry will be dropped
  *
+ * Alternatively, the capacity may be defined as a maximum total weight, e.g. in bytes, by supplying a `Cache.Weigher`
+ *
+ * Entries may additionally expire after a fixed time since they have been written or last read
+ *
+ * Optionally, entries that are dropped due to the size limit may be moved to a `DiskCache` below this cache
+ *
+ * Optionally, new entries may have to prove their popularity before they can replace existing entries (see `ADMISSION_FREQUENCY`)
+ *
+ * Alternatively, the entries to drop may be chosen by one of several strategies, e.g. segmented LRU or ARC (see `EvictionPolicy`)
+ *
+ * Lookups never block, while all modifications are serialized by a single lock
+ *
+ * The entries can be iterated either as an immutable snapshot (see `snapshot()`) or without blocking (see `iterator()`)
+ *
  * This implementation is thread-safe
  *
  * @param <K> the type of the keys
  * @param <V> the type of the values
  */
-public class Cache<K, V> {
+public class Cache<K, V> implements Iterable<Map.Entry<K, V>> {
 
+	/** Admits every new entry and drops entries strictly in the order of the cache */
+	public static final int ADMISSION_ALL = 1;
+	/**
+	 * Keeps new entries in a small window first and admits them to the main part of the cache only if they have been used more often than the entry they would replace
+	 *
+	 * This prevents a single pass over many keys that are used only once from flushing frequently used entries
+	 */
+	public static final int ADMISSION_FREQUENCY = 2;
 	private static final float MAP_LOAD_FACTOR = 0.75f;
-	private final int mCacheSize;
-	private final Map<K, V> mMap;
+	/** Share of the cache size (in percent) that is used for the admission window */
+	private static final int ADMISSION_WINDOW_PERCENT = 1;
+	/** Placeholder for the `null` key, which is not supported by the underlying map */
+	private static final Object NULL_KEY = new Object();
+	/** Marks entries that do not expire at a fixed time */
+	static final long NO_DEADLINE = Long.MAX_VALUE;
+	/** Marks entries that do not expire after their last access */
+	static final long UNSTAMPED = Long.MIN_VALUE;
+	/** Durations beyond this limit (about 146 years) are treated as infinite */
+	private static final long MAX_DURATION_NANOS = Long.MAX_VALUE >> 1;
+	/** The initial capacity of the frequency sketch if the number of entries is not known in advance */
+	private static final int INITIAL_SKETCH_CAPACITY = 16;
+	/** The maximum total weight of all entries, which is the maximum number of entries if there is no weigher (written only with `mLock`) */
+	private volatile long mMaximumWeight;
+	/** Calculates the weight of each entry, or `null` if every entry has a weight of `1` */
+	private final Weigher<? super K, ? super V> mWeigher;
+	private final boolean mAccessOrder;
+	private final ConcurrentHashMap<Object, Node<K, V>> mMap;
+	private final ReentrantLock mLock;
+	/** Accesses that have not been applied to the cache yet, or `null` if accesses do not need to be recorded */
+	private final ReadBuffer<Node<K, V>> mReadBuffer;
+	private final ReadBuffer.Sink<Node<K, V>> mReadBufferSink;
+	/** Popularity of recently used keys, or `null` if every new entry is admitted (guarded by `mLock`) */
+	private final FrequencySketch mSketch;
+	/** The maximum total weight of the entries in the admission window (guarded by `mLock`) */
+	private long mWindowWeight;
+	/** Recently added entries that have not been admitted to the main part yet (guarded by `mLock`) */
+	private final NodeList<K, V> mWindow;
+	/** Entries in the order of eviction, where the head is the next one to be dropped (guarded by `mLock`) */
+	private final NodeList<K, V> mMain;
+	/** All lists of entries in the order of iteration, i.e. the main part and the admission window, or the lists of the eviction policy */
+	private final NodeList<K, V>[] mLists;
+	/** The state of the eviction policy, or `null` if entries are dropped in the order of insertion or access */
+	private final EvictionPolicy.Instance<K, V> mPolicy;
+	/** The time (in nanoseconds) after which entries expire once they have been written, or `0` */
+	private volatile long mExpireAfterWriteNanos;
+	/** The time (in nanoseconds) after which entries expire once they have been read or written, or `0` */
+	private volatile long mExpireAfterAccessNanos;
+	/** Whether any entry may expire, so that the current time has to be checked on lookups */
+	private volatile boolean mExpiring;
+	/** The time (in nanoseconds) after writes after which reads trigger a reload of the value, or zero */
+	private volatile long mRefreshAfterWriteNanos;
+	private volatile Loader<? super K, ? extends V> mRefreshLoader;
+	private volatile Executor mRefreshExecutor;
+	/** Schedules the expiration of entries, which is created when it is first needed (guarded by `mLock`) */
+	private TimerWheel<K, V> mTimerWheel;
+	/** The second level that dropped entries are moved to, or `null` */
+	private volatile DiskCache<K, V> mDiskCache;
+	/** The entries that have been restored from a snapshot but that have not been requested yet, or `null` */
+	private volatile CacheSnapshot<K, V> mRestored;
+	/** Dropped entries that have yet to be written to the second level, and keys to invalidate there (without a value), in the order of the changes */
+	private final ConcurrentLinkedQueue<Node<K, V>> mSpills;
+	/** Serializes all writes to the second level so that they are applied in order */
+	private final ReentrantLock mSpillLock;
+	/** The loads that are currently in progress by their (masked) keys */
+	private final ConcurrentHashMap<Object, Loading<V>> mLoadings;
+	/** Whether removals are reported to `onEntryRemoved(...)` only after the lock has been released */
+	private volatile boolean mDeferRemovals;
+	/** The executor that deferred removals are reported on, or `null` to report them in the thread that caused them */
+	private volatile Executor mRemovalExecutor;
+	/** Removals that have yet to be reported, in the order in which they happened */
+	private final ConcurrentLinkedQueue<Removal<K, V>> mRemovals;
+	/** Serializes the reporting of deferred removals so that they are delivered in order */
+	private final ReentrantLock mRemovalLock;
+	/** Whether a task that reports the deferred removals has been passed to the executor and has not started yet */
+	private final AtomicBoolean mRemovalTaskScheduled;
+	/** Whether new values are held only through soft references (written only with `mLock`) */
+	private volatile boolean mSoftValues;
+	/** Receives the soft references whose values have been collected */
+	private final ReferenceQueue<V> mCollectedValues;
+	/** The statistics that are recorded, or `null` if recording is disabled */
+	private volatile CacheStats mStats;
+	/** The recorder that reads and writes are traced to, or `null` if tracing is disabled */
+	private volatile CacheTrace.Recorder mTrace;
+	/** The tracker of the most frequently used keys, or `null` if tracking is disabled */
+	private volatile HotKeys<K> mHotKeys;
+	/** The keys that have been dropped recently if the capacity is managed by a `CacheBudget`, or `null` */
+	private volatile CacheBudget.Shadow mShadow;
+	/** The entries by each of their tags, which is created when the first tag is used (guarded by `mLock`) */
+	private HashMap<Object, HashSet<Node<K, V>>> mTagIndex;
 
 	/**
 	 * Creates a new instance with the given cache size
@@ -47,28 +165,150 @@ public class Cache<K, V> {
 		this(cacheSize, false);
 	}
 
+	/**
+	 * Creates a new instance with the given cache size and admission policy
+	 *
+	 * @param cacheSize the maximum number of elements to hold
+	 * @param admission the admission policy, either `Cache.ADMISSION_ALL` or `Cache.ADMISSION_FREQUENCY`
+	 */
+	public Cache(final int cacheSize, final int admission) {
+		this(cacheSize, false, admission);
+	}
+
+	/**
+	 * Creates a new instance with the given maximum total weight
+	 *
+	 * Entries are dropped until the total weight of the remaining entries fits into the maximum again
+	 *
+	 * @param maximumWeight the maximum total weight of all elements
+	 * @param weigher the weigher that calculates the weight of each element
+	 */
+	public Cache(final long maximumWeight, final Weigher<? super K, ? super V> weigher) {
+		this(maximumWeight, weigher, false, ADMISSION_ALL);
+	}
+
+	/**
+	 * Creates a new instance with the given maximum total weight and admission policy
+	 *
+	 * Entries are dropped until the total weight of the remaining entries fits into the maximum again
+	 *
+	 * @param maximumWeight the maximum total weight of all elements
+	 * @param weigher the weigher that calculates the weight of each element
+	 * @param admission the admission policy, either `Cache.ADMISSION_ALL` or `Cache.ADMISSION_FREQUENCY`
+	 */
+	public Cache(final long maximumWeight, final Weigher<? super K, ? super V> weigher, final int admission) {
+		this(maximumWeight, weigher, false, admission);
+	}
+
+	/**
+	 * Creates a new instance with the given cache size and eviction policy
+	 *
+	 * @param cacheSize the maximum number of elements to hold
+	 * @param policy the policy that decides which entries are dropped, e.g. `EvictionPolicy.arc()`
+	 */
+	public Cache(final int cacheSize, final EvictionPolicy policy) {
+		this(cacheSize, null, policy);
+	}
+
+	/**
+	 * Creates a new instance with the given maximum total weight and eviction policy
+	 *
+	 * Entries are dropped as decided by the policy until the total weight of the remaining entries fits into the maximum again
+	 *
+	 * @param maximumWeight the maximum total weight of all elements
+	 * @param weigher the weigher that calculates the weight of each element, or `null` to count the elements
+	 * @param policy the policy that decides which entries are dropped, e.g. `EvictionPolicy.arc()`
+	 */
+	public Cache(final long maximumWeight, final Weigher<? super K, ? super V> weigher, final EvictionPolicy policy) {
+		this(maximumWeight, weigher, true, ADMISSION_ALL, policy);
+
+		if (policy == null) {
+			throw new RuntimeException("policy must not be null");
+		}
+	}
+
 	protected Cache(final int cacheSize, final boolean useAccessOrder) {
-		mCacheSize = cacheSize;
-		mMap = new LinkedHashMap<K, V>(mCacheSize, MAP_LOAD_FACTOR, useAccessOrder) {
+		this(cacheSize, useAccessOrder, ADMISSION_ALL);
+	}
 
-			private static final long serialVersionUID = 3042571622151610748L;
+	protected Cache(final int cacheSize, final boolean useAccessOrder, final int admission) {
+		this(cacheSize, null, useAccessOrder, admission);
+	}
 
-			@Override
-			protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
-				// remove the eldest entry when the size exceeds the maximum
-				if (size() > mCacheSize) {
-					if (eldest != null) {
-						onEntryRemoved(eldest.getKey(), eldest.getValue(), false);
-					}
+	protected Cache(final long maximumWeight, final Weigher<? super K, ? super V> weigher, final boolean useAccessOrder, final int admission) {
+		this(maximumWeight, weigher, useAccessOrder, admission, null);
+	}
 
-					return true;
-				}
-				else {
-					return false;
-				}
+	@SuppressWarnings("unchecked")
+	protected Cache(final long maximumWeight, final Weigher<? super K, ? super V> weigher, final boolean useAccessOrder, final int admission, final EvictionPolicy policy) {
+		if (maximumWeight < 0) {
+			throw new RuntimeException("maximumWeight must not be negative");
+		}
+
+		if (admission != ADMISSION_ALL && admission != ADMISSION_FREQUENCY) {
+			throw new RuntimeException("admission must be either ADMISSION_ALL or ADMISSION_FREQUENCY");
+		}
+
+		mMaximumWeight = maximumWeight;
+		mWeigher = weigher;
+		mAccessOrder = useAccessOrder;
+
+		// without a weigher, the maximum weight is the maximum number of entries
+		final int expectedSize = mWeigher == null ? (int) Math.min(mMaximumWeight, Integer.MAX_VALUE) : INITIAL_SKETCH_CAPACITY;
+
+		mMap = new ConcurrentHashMap<Object, Node<K, V>>(Math.max(expectedSize, 1), MAP_LOAD_FACTOR);
+		mLock = new ReentrantLock();
+		mWindow = new NodeList<K, V>();
+		mMain = new NodeList<K, V>();
+
+		if (policy != null) {
+			if (admission != ADMISSION_ALL) {
+				throw new RuntimeException("admission must be ADMISSION_ALL if an eviction policy is used");
 			}
 
-		};
+			mPolicy = policy.newInstance(mMaximumWeight);
+			mLists = mPolicy.mLists;
+		}
+		else {
+			mPolicy = null;
+			mLists = (NodeList<K, V>[]) new NodeList[] { mMain, mWindow };
+		}
+		mSpills = new ConcurrentLinkedQueue<Node<K, V>>();
+		mSpillLock = new ReentrantLock();
+		mLoadings = new ConcurrentHashMap<Object, Loading<V>>();
+		mRemovals = new ConcurrentLinkedQueue<Removal<K, V>>();
+		mRemovalLock = new ReentrantLock();
+		mRemovalTaskScheduled = new AtomicBoolean();
+		mCollectedValues = new ReferenceQueue<V>();
+
+		if (admission == ADMISSION_FREQUENCY) {
+			mSketch = new FrequencySketch(expectedSize);
+			mWindowWeight = Math.max(mMaximumWeight * ADMISSION_WINDOW_PERCENT / 100, 1);
+		}
+		else {
+			mSketch = null;
+			mWindowWeight = 0;
+		}
+
+		if (mAccessOrder || mSketch != null || mPolicy != null) {
+			// lookups only record the access here and the access is applied to the cache later
+			mReadBuffer = new ReadBuffer<Node<K, V>>();
+			mReadBufferSink = new ReadBuffer.Sink<Node<K, V>>() {
+
+				@Override
+				public void accept(final Node<K, V> node) {
+					// the entry may have been removed since the access was recorded
+					if (node.mList != null) {
+						onAccess(node);
+					}
+				}
+
+			};
+		}
+		else {
+			mReadBuffer = null;
+			mReadBufferSink = null;
+		}
 	}
 
 	/**
@@ -78,77 +318,2245 @@ public class Cache<K, V> {
 	 * @param value the value to save
 	 * @return the previous value or `null`
 	 */
-	public synchronized V put(final K key, final V value) {
-		final V previous = mMap.put(key, value);
+	public V put(final K key, final V value) {
+		return putObserved(key, value, -1L, null);
+	}
+
+	/**
+	 * Inserts a new element with the given tags and possibly overwrites any previous value with the same key
+	 *
+	 * All entries that carry a tag can be removed at once through `invalidateTag(...)`
+	 *
+	 * Overwriting the entry replaces its tags, while reloads through `refreshAfterWrite(...)` keep them
+	 *
+	 * The tags are held in memory only, so entries that are restored from the second level or from a snapshot do not carry any tags
+	 *
+	 * @param key the key to save the value for
+	 * @param value the value to save
+	 * @param tags the tags of the entry, which should implement `equals(...)` and `hashCode()`
+	 * @return the previous value or `null`
+	 */
+	public V putTagged(final K key, final V value, final Object... tags) {
+		return putObserved(key, value, -1L, tags != null && tags.length > 0 ? tags.clone() : null);
+	}
+
+	/**
+	 * Inserts a new element that expires after the given duration and possibly overwrites any previous value with the same key
+	 *
+	 * The duration replaces the cache's time-to-live after writes for this entry (see `expireAfterWrite(...)`)
+	 *
+	 * @param key the key to save the value for
+	 * @param value the value to save
+	 * @param duration the time after which the entry expires
+	 * @param unit the unit of the duration
+	 * @return the previous value or `null`
+	 */
+	public V put(final K key, final V value, final long duration, final TimeUnit unit) {
+		if (duration <= 0) {
+			throw new RuntimeException("duration must be positive");
+		}
+
+		mExpiring = true;
+
+		return putObserved(key, value, Math.min(unit.toNanos(duration), MAX_DURATION_NANOS), null);
+	}
+
+	/** Inserts or overwrites a single entry and reports the write to the trace and to the tracker of hot keys (if any) */
+	private V putObserved(final K key, final V value, final long timeToLiveNanos, final Object[] tags) {
+		final V previous = putEntry(key, value, timeToLiveNanos, false, null, tags);
+
+		final CacheTrace.Recorder trace = mTrace;
 
-		if (previous != null) {
-			onEntryRemoved(key, previous, true);
+		if (trace != null) {
+			trace.recordWrite(key, previous == null);
+		}
+
+		final HotKeys<K> hotKeys = mHotKeys;
+
+		if (hotKeys != null) {
+			hotKeys.offer(key);
 		}
 
 		return previous;
 	}
 
 	/**
-	 * Returns the value for the given key
+	 * Lets entries expire once the given duration has passed since they have been added or overwritten
 	 *
-	 * @param key the key to look up
-	 * @return the value that was found for the key or `null`
+	 * This only applies to entries that are added or overwritten afterwards, so you should call this before using the cache
+	 *
+	 * Expired entries are no longer returned and are reported to `onEntryRemoved(...)` as automatic removals
+	 *
+	 * @param duration the time-to-live of each entry
+	 * @param unit the unit of the duration
+	 * @return this instance for chaining
 	 */
-	public synchronized V get(final K key) {
-		return mMap.get(key);
+	public Cache<K, V> expireAfterWrite(final long duration, final TimeUnit unit) {
+		mExpireAfterWriteNanos = toExpirationNanos(duration, unit);
+		mExpiring = true;
+
+		return this;
 	}
 
 	/**
-	 * Removes the entry with the specified key
+	 * Lets entries expire once the given duration has passed since they have last been read or written
 	 *
-	 * @param key the key to remove
-	 * @return the old value for the specified key
+	 * This only applies to entries that are added or overwritten afterwards, so you should call this before using the cache
+	 *
+	 * Expired entries are no longer returned and are reported to `onEntryRemoved(...)` as automatic removals
+	 *
+	 * @param duration the time-to-idle of each entry
+	 * @param unit the unit of the duration
+	 * @return this instance for chaining
 	 */
-	public synchronized V remove(final K key) {
-		onEntryRemoved(key, mMap.get(key), true);
+	public Cache<K, V> expireAfterAccess(final long duration, final TimeUnit unit) {
+		mExpireAfterAccessNanos = toExpirationNanos(duration, unit);
+		mExpiring = true;
 
-		return mMap.remove(key);
+		return this;
 	}
 
 	/**
-	 * Returns all values that are currently in this cache
+	 * Reloads values in the background once the given duration has passed since they have been added or overwritten
 	 *
-	 * @return a collection containing the values
+	 * Reads of such a value still return the current value right away, but trigger a reload on the given executor, which replaces the value once it completes
+	 *
+	 * There is only one reload per key at a time, and threads that request a missing key through `get(key, loader)` meanwhile run their own loader instead of waiting for that reload
+	 *
+	 * The reloaded value is discarded if the entry has been removed or overwritten in the meantime, and if the loader fails or returns `null`, the current value is kept
+	 *
+	 * The replaced value is reported to `onEntryRemoved(...)` as a manual removal, just as if it had been overwritten
+	 *
+	 * This only applies to entries that are added or overwritten afterwards, so you should call this before using the cache
+	 *
+	 * @param duration the time after which values are reloaded, or zero to disable reloading
+	 * @param unit the unit of the duration
+	 * @param loader the loader that provides the new values
+	 * @param executor the executor to run the loader on
+	 * @return this instance for chaining
 	 */
-	public synchronized Collection<V> values() {
-		return mMap.values();
+	public Cache<K, V> refreshAfterWrite(final long duration, final TimeUnit unit, final Loader<? super K, ? extends V> loader, final Executor executor) {
+		if (loader == null) {
+			throw new RuntimeException("loader must not be null");
+		}
+
+		if (executor == null) {
+			throw new RuntimeException("executor must not be null");
+		}
+
+		mRefreshLoader = loader;
+		mRefreshExecutor = executor;
+		mRefreshAfterWriteNanos = toExpirationNanos(duration, unit);
+
+		return this;
 	}
 
 	/**
-	 * Returns all keys that are currently in this cache
+	 * Moves entries that are dropped due to the size limit to the given disk cache instead of discarding them
 	 *
-	 * @return a set containing the keys
+	 * Entries are moved back from the disk cache to this cache when they are requested again
+	 *
+	 * Values are written to the disk cache after `onEntryRemoved(...)` has been called for them, so they must not have been released there
+	 *
+	 * @param diskCache the disk cache to use as the second level, or `null`
+	 * @return this instance for chaining
 	 */
-	public synchronized Set<K> keys() {
-		return mMap.keySet();
+	public Cache<K, V> spillTo(final DiskCache<K, V> diskCache) {
+		mDiskCache = diskCache;
+
+		return this;
 	}
 
 	/**
-	 * Returns the current size of this cache
+	 * Writes all entries to the given file so that they can be restored later, e.g. after the process has been restarted
 	 *
-	 * @return the number of elements contained in this cache
+	 * The entries are written from the eldest to the most recent entry, after any restored entries that have not been requested yet
+	 *
+	 * The file is only replaced once all entries have been written, so you may call this repeatedly, preferably from a background thread
+	 *
+	 * @param file the file to write to
+	 * @param keyCodec the codec to convert keys to bytes
+	 * @param valueCodec the codec to convert values to bytes
+	 * @throws IOException if the file cannot be written
 	 */
-	public synchronized int size() {
-		return mMap.size();
+	public void writeSnapshot(final File file, final Codec<K> keyCodec, final Codec<V> valueCodec) throws IOException {
+		if (keyCodec == null || valueCodec == null) {
+			throw new RuntimeException("codecs must not be null");
+		}
+
+		// the restored entries are captured before the entries in memory, so that an entry that is requested in between is in at least one of them, while a later record for the same key replaces the earlier one
+		final CacheSnapshot.Records pending = CacheSnapshot.pendingRecords(mRestored);
+
+		CacheSnapshot.write(file, snapshot(), pending, keyCodec, valueCodec);
 	}
 
 	/**
-	 * Override this method if you want to be informed whenever an entry is removed from the cache
+	 * Restores the entries that have been written to the given file by `writeSnapshot(...)`
 	 *
-	 * You may use this if you must manually release resources when an element is deleted
+	 * The file is mapped into memory and only the keys are read right away, while each value is decoded and added to the cache once it is requested
 	 *
-	 * The default implementation does nothing
+	 * If the file contains more entries than the cache can hold, only the most recent entries are restored
 	 *
-	 * @param key the key that was removed
-	 * @param value the value that was removed
-	 * @param causedManually whether the removal was caused manually (through `put(...)` or `delete(...)`) or automatically
+	 * Restored entries that are overwritten or removed before they have been requested are discarded
+	 *
+	 * You should call this before using the cache, and it replaces any entries that have been restored before but not requested yet
+	 *
+	 * @param file the file to read from
+	 * @param keyCodec the codec to convert keys from bytes
+	 * @param valueCodec the codec to convert values from bytes
+	 * @return the number of entries that have been restored, which is zero if the file does not exist
+	 * @throws IOException if the file cannot be read or has not been written by `writeSnapshot(...)`
 	 */
-	@SuppressWarnings("unused")
-	public void onEntryRemoved(final K key, final V value, final boolean causedManually) { }
+	public int restoreSnapshot(final File file, final Codec<K> keyCodec, final Codec<V> valueCodec) throws IOException {
+		if (keyCodec == null || valueCodec == null) {
+			throw new RuntimeException("codecs must not be null");
+		}
+
+		// with a weigher, the number of entries that fit into the cache is not known before the values have been decoded
+		final CacheSnapshot<K, V> restored = CacheSnapshot.open(file, keyCodec, valueCodec, mWeigher == null ? getMaximumWeight() : Long.MAX_VALUE);
+		setRestored(restored);
+
+		return restored.size();
+	}
+
+	/** Sets the entries that have been restored from a snapshot, which subclasses may share with other caches */
+	void setRestored(final CacheSnapshot<K, V> restored) {
+		mRestored = restored;
+	}
+
+	/**
+	 * Returns the maximum total weight of all entries
+	 *
+	 * Without a `Cache.Weigher`, this is the maximum number of elements
+	 *
+	 * @return the maximum total weight
+	 */
+	public long getMaximumWeight() {
+		return mMaximumWeight;
+	}
+
+	/**
+	 * Changes the maximum total weight of all entries, e.g. to release memory while the system is low on memory
+	 *
+	 * If the cache holds more than the new maximum, entries are dropped right away
+	 *
+	 * Without a `Cache.Weigher`, this is the maximum number of elements
+	 *
+	 * @param maximumWeight the new maximum total weight
+	 */
+	public void setMaximumWeight(final long maximumWeight) {
+		if (maximumWeight < 0) {
+			throw new RuntimeException("maximumWeight must not be negative");
+		}
+
+		lock();
+
+		try {
+			runMaintenance(currentTime());
+
+			mMaximumWeight = maximumWeight;
+
+			if (mSketch != null) {
+				mWindowWeight = Math.max(maximumWeight * ADMISSION_WINDOW_PERCENT / 100, 1);
+			}
+
+			if (mPolicy != null) {
+				mPolicy.setMaximumWeight(maximumWeight);
+			}
+
+			evictEntries();
+		}
+		finally {
+			unlock();
+		}
+
+		writeSecondLevel();
+	}
+
+	/**
+	 * Sets whether values are held only through soft references, so that the garbage collector may reclaim them when memory runs low
+	 *
+	 * This applies to the values that are currently in the cache as well as to all values that are added later
+	 *
+	 * Values that have been reclaimed are treated as missing, and their removal is not reported to `onEntryRemoved(...)`
+	 *
+	 * @param softValues whether to hold values softly (`true`) or strongly (`false`)
+	 */
+	public void setSoftValues(final boolean softValues) {
+		lock();
+
+		try {
+			runMaintenance(currentTime());
+
+			mSoftValues = softValues;
+
+			for (NodeList<K, V> list : mLists) {
+				rewrapValues(list);
+			}
+		}
+		finally {
+			unlock();
+		}
+	}
+
+	/** Converts the values in the given list to soft or strong references as configured and drops the values that have been collected (requires `mLock`) */
+	private void rewrapValues(final NodeList<K, V> list) {
+		for (Node<K, V> node = list.mHead; node != null; ) {
+			final Node<K, V> next = node.mNext;
+
+			if (node.isCollected()) {
+				evict(node, false);
+			}
+			else {
+				node.mValue = wrapValue(node, node.getValue());
+			}
+
+			node = next;
+		}
+	}
+
+	/** Returns the given value as it is to be stored in the given entry, i.e. wrapped in a soft reference if values are held softly */
+	private Object wrapValue(final Node<K, V> node, final V value) {
+		if (mSoftValues && value != null) {
+			return new SoftValue<K, V>(value, node, mCollectedValues);
+		}
+		else {
+			return value;
+		}
+	}
+
+	/**
+	 * Reports removals to `onEntryRemoved(...)` only after the cache's lock has been released, so that slow callbacks do not block other threads
+	 *
+	 * The removals are reported by the thread that caused them, once it has released the lock
+	 *
+	 * The removals for each key are still reported in the order in which they happened
+	 *
+	 * @return this instance for chaining
+	 */
+	public Cache<K, V> deferRemovalNotifications() {
+		return deferRemovalNotifications(null);
+	}
+
+	/**
+	 * Reports removals to `onEntryRemoved(...)` on the given executor instead of while holding the cache's lock
+	 *
+	 * The removals for each key are still reported in the order in which they happened, even if the executor uses multiple threads
+	 *
+	 * @param executor the executor to report removals on, or `null` to report them in the thread that caused them after it has released the lock
+	 * @return this instance for chaining
+	 */
+	public Cache<K, V> deferRemovalNotifications(final Executor executor) {
+		mRemovalExecutor = executor;
+		mDeferRemovals = true;
+
+		return this;
+	}
+
+	/**
+	 * Starts recording statistics about hits, misses, loads and removals as well as the time spent waiting for the lock
+	 *
+	 * Recording adds a small overhead to every operation and is thus disabled by default
+	 *
+	 * @return this instance for chaining
+	 */
+	public Cache<K, V> recordStats() {
+		return recordStats(new CacheStats());
+	}
+
+	/** Starts recording statistics into the given instance, which may be shared with other caches */
+	Cache<K, V> recordStats(final CacheStats stats) {
+		mStats = stats;
+
+		return this;
+	}
+
+	/**
+	 * Returns the statistics that have been recorded since `recordStats()` has been called
+	 *
+	 * The returned instance is updated continuously
+	 *
+	 * @return the statistics or `null` if recording has not been enabled
+	 */
+	public CacheStats getStats() {
+		return mStats;
+	}
+
+	/**
+	 * Starts recording the keys of all reads and writes to the given recorder, so that they can be replayed by `CacheSimulator` later
+	 *
+	 * The recorder may be shared with other caches, and recording stops once the recorder has been closed
+	 *
+	 * @param recorder the recorder or `null` to stop recording
+	 * @return this instance for chaining
+	 */
+	public Cache<K, V> recordTrace(final CacheTrace.Recorder recorder) {
+		mTrace = recorder;
+
+		return this;
+	}
+
+	/**
+	 * Starts counting the reads and writes of each key in order to find the keys that are used most often
+	 *
+	 * Only the given number of keys is tracked, so the memory that is used is bounded (see `HotKeys`)
+	 *
+	 * @param capacity the maximum number of keys to track
+	 * @return this instance for chaining
+	 */
+	public Cache<K, V> trackHotKeys(final int capacity) {
+		return trackHotKeys(new HotKeys<K>(capacity));
+	}
+
+	/** Starts remembering the keys that are dropped due to the size limit in the given shadow, or stops if it is `null` */
+	void setShadow(final CacheBudget.Shadow shadow) {
+		mShadow = shadow;
+	}
+
+	/** Starts counting the uses of keys into the given tracker, which may be shared with other caches */
+	Cache<K, V> trackHotKeys(final HotKeys<K> hotKeys) {
+		mHotKeys = hotKeys;
+
+		return this;
+	}
+
+	/**
+	 * Returns the tracker of the keys that are used most often since `trackHotKeys(...)` has been called
+	 *
+	 * The returned instance is updated continuously
+	 *
+	 * @return the tracker or `null` if tracking has not been enabled
+	 */
+	public HotKeys<K> getHotKeys() {
+		return mHotKeys;
+	}
+
+	/**
+	 * Removes all entries that have expired and applies all recorded accesses
+	 *
+	 * This happens automatically during writes and occasionally during lookups, so you only need to call this if you want to release expired entries early
+	 */
+	public void cleanUp() {
+		lock();
+
+		try {
+			runMaintenance(currentTime());
+		}
+		finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * Inserts or overwrites a single entry
+	 *
+	 * @param loading the load that has provided the value, which is discarded if the key has been removed meanwhile, or `null`
+	 */
+	private V putEntry(final K key, final V value, final long timeToLiveNanos, final boolean onlyIfAbsent, final Loading<V> loading, final Object[] tags) {
+		final V previous;
+
+		lock();
+
+		try {
+			final long now = currentTime();
+			runMaintenance(now);
+
+			// the flag is checked while holding the lock so that a concurrent removal either sees the value or prevents it
+			if (loading != null && loading.mInvalidated) {
+				return null;
+			}
+
+			previous = putLocked(key, value, timeToLiveNanos, onlyIfAbsent, now, tags);
+			evictEntries();
+		}
+		finally {
+			unlock();
+		}
+
+		// write dropped entries and the invalidation of the previous value to the second level
+		if (mDiskCache != null) {
+			writeSecondLevel();
+		}
+
+		return previous;
+	}
+
+	/**
+	 * Inserts or overwrites a single entry without dropping entries that exceed the size limit (requires `mLock`)
+	 *
+	 * @param tags the tags that replace any previous tags of the entry, or `null`
+	 * @return the previous value, or the current value if `onlyIfAbsent` is set
+	 */
+	private V putLocked(final K key, final V value, final long timeToLiveNanos, final boolean onlyIfAbsent, final long now, final Object[] tags) {
+		final Object mapKey = maskNull(key);
+
+		Node<K, V> existing = mMap.get(mapKey);
+
+		// an entry that has expired is not replaced but dropped first
+		if (existing != null && mExpiring && isExpired(existing, now)) {
+			evict(existing, false);
+			existing = null;
+		}
+
+		if (existing != null && onlyIfAbsent) {
+			return existing.getValue();
+		}
+
+		// a restored copy of the entry is outdated once the entry has been written
+		final CacheSnapshot<K, V> restored = mRestored;
+		if (restored != null) {
+			restored.remove(key);
+		}
+
+		// a value that is promoted or loaded has no outdated counterpart in the second level
+		if (!onlyIfAbsent) {
+			invalidateSecondLevel(key);
+		}
+
+		final int weight = weigh(key, value);
+
+		if (existing == null) {
+			final Node<K, V> node = new Node<K, V>(key, value, weight);
+			node.mValue = wrapValue(node, value);
+			mMap.put(mapKey, node);
+
+			if (tags != null) {
+				tag(node, tags);
+			}
+
+			// new entries have to pass the admission window first (if enabled)
+			if (mPolicy != null) {
+				mPolicy.onInsert(node, mapKey);
+			}
+			else if (mSketch == null) {
+				mMain.linkLast(node);
+			}
+			else {
+				mSketch.ensureCapacity(mMap.size());
+				mSketch.increment(key);
+				mWindow.linkLast(node);
+			}
+
+			if (mExpiring) {
+				scheduleExpiration(node, now, timeToLiveNanos);
+			}
+
+			if (mRefreshAfterWriteNanos > 0) {
+				node.mWriteTime = System.nanoTime();
+			}
+
+			return null;
+		}
+		else {
+			final V previous = existing.getValue();
+			existing.mValue = wrapValue(existing, value);
+			existing.mList.updateWeight(existing, weight);
+
+			if (existing.mTags != null || tags != null) {
+				untag(existing);
+				tag(existing, tags);
+			}
+
+			// overwriting an entry counts as an access
+			onAccess(existing);
+
+			if (mExpiring) {
+				scheduleExpiration(existing, now, timeToLiveNanos);
+			}
+
+			existing.mWriteTime = mRefreshAfterWriteNanos > 0 ? System.nanoTime() : UNSTAMPED;
+
+			if (previous != null) {
+				notifyRemoval(key, previous, true);
+			}
+
+			return previous;
+		}
+	}
+
+	/**
+	 * Returns the value for the given key
+	 *
+	 * This method does not block
+	 *
+	 * @param key the key to look up
+	 * @return the value that was found for the key or `null`
+	 */
+	public V get(final K key) {
+		final Node<K, V> node = mMap.get(maskNull(key));
+
+		final CacheTrace.Recorder trace = mTrace;
+
+		if (trace != null) {
+			trace.recordRead(key);
+		}
+
+		final HotKeys<K> hotKeys = mHotKeys;
+
+		if (hotKeys != null) {
+			hotKeys.offer(key);
+		}
+
+		final CacheStats stats = mStats;
+
+		if (node == null) {
+			if (stats != null) {
+				stats.recordMiss();
+			}
+
+			final CacheBudget.Shadow shadow = mShadow;
+
+			if (shadow != null) {
+				shadow.recordMiss(key);
+			}
+
+			return promote(key);
+		}
+
+		if (mExpiring) {
+			final long now = System.nanoTime();
+
+			// treat expired entries as missing and try to release them right away
+			if (isExpired(node, now)) {
+				if (stats != null) {
+					stats.recordMiss();
+				}
+
+				tryExpire(node, now);
+
+				return null;
+			}
+
+			// the time of the access is written without the lock, which may occasionally lose a concurrent update
+			if (mExpireAfterAccessNanos > 0 && node.mAccessTime != UNSTAMPED) {
+				node.mAccessTime = now;
+			}
+		}
+
+		final V value = node.getValue();
+
+		// a value that has been reclaimed counts as missing, and the entry is dropped during the next maintenance
+		if (value == null && node.isCollected()) {
+			if (stats != null) {
+				stats.recordMiss();
+			}
+
+			tryRunMaintenance();
+
+			return null;
+		}
+
+		if (stats != null) {
+			stats.recordHit();
+		}
+
+		if (mRefreshAfterWriteNanos > 0) {
+			refreshIfStale(node, value);
+		}
+
+		if (mReadBuffer != null) {
+			// record the access and apply it to the order of entries only if the lock is free
+			if (mReadBuffer.offer(node)) {
+				tryRunMaintenance();
+			}
+		}
+
+		return value;
+	}
+
+	/**
+	 * Returns the value for the given key and loads the value if it is missing
+	 *
+	 * If multiple threads request the same missing key at the same time, only one of them runs the loader while the others wait for its result
+	 *
+	 * The loader runs without holding the cache's lock, so other keys can be used meanwhile
+	 *
+	 * Values that are returned by the loader are added to the cache, unless the key has been removed or written in the meantime
+	 *
+	 * If the loader throws an exception, the exception is passed on to all waiting threads and nothing is added to the cache
+	 *
+	 * @param key the key to look up
+	 * @param loader the loader that provides the value if it is missing
+	 * @return the value that was found or loaded for the key or `null` if the loader returned `null`
+	 */
+	public V get(final K key, final Loader<? super K, ? extends V> loader) {
+		if (loader == null) {
+			throw new RuntimeException("loader must not be null");
+		}
+
+		final V cached = get(key);
+
+		if (cached != null) {
+			return cached;
+		}
+
+		final Object mapKey = maskNull(key);
+		final Loading<V> loading = new Loading<V>(false);
+		Loading<V> inProgress = mLoadings.putIfAbsent(mapKey, loading);
+
+		// a reload in the background cannot add its value anymore once the entry is missing, so this load takes over instead of waiting for the reload
+		while (inProgress != null && inProgress.mRefresh) {
+			inProgress = mLoadings.replace(mapKey, inProgress, loading) ? null : mLoadings.putIfAbsent(mapKey, loading);
+		}
+
+		// another thread is loading the same key already
+		if (inProgress != null) {
+			return inProgress.await();
+		}
+
+		try {
+			// the value may have been added between the lookup and the registration of this load
+			V value = peek(key);
+
+			if (value == null) {
+				value = loader.load(key);
+
+				if (value != null) {
+					final CacheStats stats = mStats;
+
+					if (stats != null) {
+						stats.recordLoad();
+					}
+
+					// if another thread has inserted a value meanwhile, that value wins
+					final V current = putEntry(key, value, -1L, true, loading, null);
+
+					final CacheTrace.Recorder trace = mTrace;
+
+					if (trace != null) {
+						trace.recordWrite(key, true);
+					}
+
+					if (current != null) {
+						value = current;
+					}
+				}
+			}
+
+			loading.complete(value, null);
+
+			return value;
+		}
+		catch (RuntimeException e) {
+			loading.complete(null, e);
+
+			throw e;
+		}
+		catch (Error e) {
+			loading.complete(null, e);
+
+			throw e;
+		}
+		finally {
+			mLoadings.remove(mapKey, loading);
+		}
+	}
+
+	/** Starts a reload of the given value in the background if the value is due to be refreshed and is not being reloaded already */
+	private void refreshIfStale(final Node<K, V> node, final V value) {
+		final long writeTime = node.mWriteTime;
+
+		if (writeTime == UNSTAMPED || System.nanoTime() - writeTime < mRefreshAfterWriteNanos) {
+			return;
+		}
+
+		final Object mapKey = maskNull(node.mKey);
+		final Loading<V> loading = new Loading<V>(true);
+
+		// the reload is registered like any other load, so that there is only one reload per key at a time and no reload starts while the key is being loaded
+		if (mLoadings.putIfAbsent(mapKey, loading) != null) {
+			return;
+		}
+
+		try {
+			mRefreshExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					refresh(node, value, loading);
+				}
+
+			});
+		}
+		catch (RuntimeException e) {
+			// the executor has rejected the reload, so the current value is kept and the next read tries again
+			loading.complete(null, e);
+			mLoadings.remove(mapKey, loading);
+		}
+	}
+
+	/** Reloads the value of the given entry and replaces the value if the entry has not been changed meanwhile */
+	private void refresh(final Node<K, V> node, final V previous, final Loading<V> loading) {
+		final K key = node.mKey;
+
+		try {
+			final V value = mRefreshLoader.load(key);
+
+			if (value != null) {
+				final CacheStats stats = mStats;
+
+				if (stats != null) {
+					stats.recordLoad();
+				}
+
+				lock();
+
+				try {
+					final long now = currentTime();
+					runMaintenance(now);
+
+					// the flag and the entry are checked while holding the lock so that a concurrent removal or write always wins
+					if (!loading.mInvalidated && node.mList != null && mMap.get(maskNull(key)) == node && node.getValue() == previous) {
+						// a reload replaces the value only, so the entry keeps its tags
+						putLocked(key, value, -1L, false, now, node.mTags);
+						evictEntries();
+					}
+				}
+				finally {
+					unlock();
+				}
+
+				if (mDiskCache != null) {
+					writeSecondLevel();
+				}
+			}
+
+			loading.complete(value, null);
+		}
+		// a failed reload keeps the current value and is retried on the next read
+		catch (RuntimeException e) {
+			loading.complete(null, e);
+		}
+		catch (Error e) {
+			loading.complete(null, e);
+
+			throw e;
+		}
+		finally {
+			mLoadings.remove(maskNull(key), loading);
+		}
+	}
+
+	/** Returns the value for the given key without recording an access or loading it from the second level */
+	V peek(final K key) {
+		final Node<K, V> node = mMap.get(maskNull(key));
+
+		if (node == null || (mExpiring && isExpired(node, System.nanoTime()))) {
+			return null;
+		}
+
+		return node.getValue();
+	}
+
+	/**
+	 * Removes the entry with the specified key
+	 *
+	 * @param key the key to remove
+	 * @return the old value for the specified key
+	 */
+	public V remove(final K key) {
+		final V removed;
+
+		invalidateLoading(key);
+		lock();
+
+		try {
+			final long now = currentTime();
+			runMaintenance(now);
+			removed = removeLocked(key, now);
+		}
+		finally {
+			unlock();
+		}
+
+		// apply the invalidation to the second level as well
+		if (mDiskCache != null) {
+			writeSecondLevel();
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Returns the values for all of the given keys that are in this cache
+	 *
+	 * The lock is acquired only once for the whole batch, so this is cheaper than calling `get(...)` for each key
+	 *
+	 * @param keys the keys to look up
+	 * @return a map of the keys that have been found to their values
+	 */
+	public Map<K, V> getAll(final Collection<? extends K> keys) {
+		final LinkedHashMap<K, V> out = new LinkedHashMap<K, V>((int) (keys.size() / MAP_LOAD_FACTOR) + 1);
+		final ArrayList<K> missing = new ArrayList<K>();
+		final CacheStats stats = mStats;
+		final CacheBudget.Shadow shadow = mShadow;
+		final CacheTrace.Recorder trace = mTrace;
+
+		if (trace != null) {
+			for (K key : keys) {
+				trace.recordRead(key);
+			}
+		}
+
+		final HotKeys<K> hotKeys = mHotKeys;
+
+		if (hotKeys != null) {
+			for (K key : keys) {
+				hotKeys.offer(key);
+			}
+		}
+
+		lock();
+
+		try {
+			final long now = currentTime();
+			runMaintenance(now);
+
+			for (K key : keys) {
+				final Node<K, V> node = mMap.get(maskNull(key));
+
+				if (node == null || (mExpiring && isExpired(node, now)) || node.isCollected()) {
+					if (node != null) {
+						evict(node, false);
+					}
+
+					if (stats != null) {
+						stats.recordMiss();
+					}
+
+					if (node == null && shadow != null) {
+						shadow.recordMiss(key);
+					}
+
+					missing.add(key);
+				}
+				else {
+					if (stats != null) {
+						stats.recordHit();
+					}
+
+					if (mExpireAfterAccessNanos > 0 && node.mAccessTime != UNSTAMPED) {
+						node.mAccessTime = now;
+					}
+
+					// the lock is held anyway, so the access is applied right away instead of being buffered
+					if (mReadBuffer != null) {
+						onAccess(node);
+					}
+
+					out.put(key, node.getValue());
+				}
+			}
+		}
+		finally {
+			unlock();
+		}
+
+		if (!missing.isEmpty() && (mDiskCache != null || mRestored != null)) {
+			promoteAll(missing, out);
+		}
+
+		return out;
+	}
+
+	/**
+	 * Inserts all of the given elements and possibly overwrites any previous values with the same keys
+	 *
+	 * The lock is acquired only once for the whole batch, and entries are dropped due to the size limit only after all elements have been inserted
+	 *
+	 * @param entries the keys and values to save
+	 */
+	public void putAll(final Map<? extends K, ? extends V> entries) {
+		final CacheTrace.Recorder trace = mTrace;
+		// whether each key has been inserted rather than overwritten, which is recorded only after the lock has been released
+		final boolean[] inserted = trace != null ? new boolean[entries.size()] : null;
+
+		lock();
+
+		try {
+			final long now = currentTime();
+			runMaintenance(now);
+
+			int i = 0;
+			for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+				final V previous = putLocked(entry.getKey(), entry.getValue(), -1L, false, now, null);
+
+				if (inserted != null) {
+					inserted[i++] = previous == null;
+				}
+			}
+
+			evictEntries();
+		}
+		finally {
+			unlock();
+		}
+
+		if (mDiskCache != null) {
+			writeSecondLevel();
+		}
+
+		if (inserted != null) {
+			int i = 0;
+			for (K key : entries.keySet()) {
+				trace.recordWrite(key, inserted[i++]);
+			}
+		}
+
+		final HotKeys<K> hotKeys = mHotKeys;
+
+		if (hotKeys != null) {
+			for (K key : entries.keySet()) {
+				hotKeys.offer(key);
+			}
+		}
+	}
+
+	/**
+	 * Removes the entries with all of the given keys
+	 *
+	 * The lock is acquired only once for the whole batch
+	 *
+	 * @param keys the keys to remove
+	 */
+	public void invalidateAll(final Collection<? extends K> keys) {
+		for (K key : keys) {
+			invalidateLoading(key);
+		}
+
+		lock();
+
+		try {
+			final long now = currentTime();
+			runMaintenance(now);
+
+			for (K key : keys) {
+				removeLocked(key, now);
+			}
+		}
+		finally {
+			unlock();
+		}
+
+		if (mDiskCache != null) {
+			writeSecondLevel();
+		}
+	}
+
+	/**
+	 * Removes all entries that carry the given tag (see `putTagged(...)`)
+	 *
+	 * The entries are found through an index of the tags, so this takes time proportional to the number of entries with the tag, not to the size of the cache
+	 *
+	 * The entries are reported to `onEntryRemoved(...)` as manual removals
+	 *
+	 * @param tag the tag to look for
+	 * @return the number of entries that have been removed
+	 */
+	public int invalidateTag(final Object tag) {
+		int removed = 0;
+
+		lock();
+
+		try {
+			final long now = currentTime();
+			runMaintenance(now);
+
+			final HashSet<Node<K, V>> nodes = mTagIndex != null ? mTagIndex.remove(tag) : null;
+
+			if (nodes != null) {
+				for (Node<K, V> node : nodes) {
+					if (removeLocked(node.mKey, now) != null) {
+						removed++;
+					}
+				}
+			}
+		}
+		finally {
+			unlock();
+		}
+
+		if (mDiskCache != null) {
+			writeSecondLevel();
+		}
+
+		return removed;
+	}
+
+	/**
+	 * Removes all entries from this cache
+	 *
+	 * The entries are reported to `onEntryRemoved(...)` as manual removals, and the second level (if any) is cleared as well
+	 */
+	public void invalidateAll() {
+		for (Loading<V> loading : mLoadings.values()) {
+			loading.mInvalidated = true;
+		}
+
+		lock();
+
+		try {
+			runMaintenance(currentTime());
+
+			for (NodeList<K, V> list : mLists) {
+				while (list.mHead != null) {
+					final Node<K, V> node = list.mHead;
+					mMap.remove(maskNull(node.mKey));
+					list.unlink(node);
+					descheduleExpiration(node);
+					if (!node.isCollected()) {
+						notifyRemoval(node.mKey, node.getValue(), true);
+					}
+				}
+			}
+
+			mTagIndex = null;
+		}
+		finally {
+			unlock();
+		}
+
+		final CacheSnapshot<K, V> restored = mRestored;
+
+		if (restored != null) {
+			restored.clear();
+		}
+
+		final DiskCache<K, V> diskCache = mDiskCache;
+
+		if (diskCache != null) {
+			mSpillLock.lock();
+
+			try {
+				mSpills.clear();
+				diskCache.clear();
+			}
+			finally {
+				mSpillLock.unlock();
+			}
+		}
+	}
+
+	/** Prevents a value that is being loaded for the given key right now from being added once it arrives */
+	private void invalidateLoading(final K key) {
+		final Loading<V> loading = mLoadings.get(maskNull(key));
+
+		if (loading != null) {
+			loading.mInvalidated = true;
+		}
+	}
+
+	/**
+	 * Removes the entry with the given key (requires `mLock`)
+	 *
+	 * @return the value that has been removed or `null`
+	 */
+	private V removeLocked(final K key, final long now) {
+		// make sure that an older value cannot be promoted from the second level or from a snapshot later
+		invalidateSecondLevel(key);
+
+		final CacheSnapshot<K, V> restored = mRestored;
+		if (restored != null) {
+			restored.remove(key);
+		}
+
+		final Node<K, V> node = mMap.get(maskNull(key));
+
+		if (node == null) {
+			return null;
+		}
+
+		// an entry that has expired or whose value has been reclaimed counts as missing
+		if ((mExpiring && isExpired(node, now)) || node.isCollected()) {
+			evict(node, false);
+
+			return null;
+		}
+
+		final V value = node.getValue();
+		mMap.remove(maskNull(key));
+		node.mList.unlink(node);
+		descheduleExpiration(node);
+		untag(node);
+		notifyRemoval(key, value, true);
+
+		return value;
+	}
+
+	/**
+	 * Returns all values that are currently in this cache
+	 *
+	 * The values are copied and ordered from the eldest to the most recent entry
+	 *
+	 * @return a collection containing the values
+	 */
+	public Collection<V> values() {
+		lock();
+
+		try {
+			final long now = currentTime();
+			runMaintenance(now);
+
+			final ArrayList<V> out = new ArrayList<V>(mMap.size());
+			for (NodeList<K, V> list : mLists) {
+				for (Node<K, V> node = list.mHead; node != null; node = node.mNext) {
+					final V value = node.getValue();
+
+					if ((!mExpiring || !isExpired(node, now)) && (value != null || !node.isCollected())) {
+						out.add(value);
+					}
+				}
+			}
+
+			return out;
+		}
+		finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * Returns all keys that are currently in this cache
+	 *
+	 * The keys are copied and ordered from the eldest to the most recent entry
+	 *
+	 * @return a set containing the keys
+	 */
+	public Set<K> keys() {
+		lock();
+
+		try {
+			final long now = currentTime();
+			runMaintenance(now);
+
+			final LinkedHashSet<K> out = new LinkedHashSet<K>((int) (mMap.size() / MAP_LOAD_FACTOR) + 1);
+			for (NodeList<K, V> list : mLists) {
+				for (Node<K, V> node = list.mHead; node != null; node = node.mNext) {
+					if ((!mExpiring || !isExpired(node, now)) && !node.isCollected()) {
+						out.add(node.mKey);
+					}
+				}
+			}
+
+			return out;
+		}
+		finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * Returns an immutable copy of all entries that are currently in this cache
+	 *
+	 * The copy is created in a single pass while holding the lock, so it reflects the state of the cache at a single point in time
+	 *
+	 * The entries are ordered from the eldest to the most recent entry, and creating the copy does not count as an access
+	 *
+	 * @return an unmodifiable map containing the entries
+	 */
+	public Map<K, V> snapshot() {
+		lock();
+
+		try {
+			final long now = currentTime();
+			runMaintenance(now);
+
+			final LinkedHashMap<K, V> out = new LinkedHashMap<K, V>((int) (mMap.size() / MAP_LOAD_FACTOR) + 1);
+			for (NodeList<K, V> list : mLists) {
+				for (Node<K, V> node = list.mHead; node != null; node = node.mNext) {
+					final V value = node.getValue();
+
+					if ((!mExpiring || !isExpired(node, now)) && (value != null || !node.isCollected())) {
+						out.put(node.mKey, value);
+					}
+				}
+			}
+
+			return java.util.Collections.unmodifiableMap(out);
+		}
+		finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * Returns an iterator over the entries of this cache that is weakly consistent
+	 *
+	 * The iterator never blocks and never throws a `ConcurrentModificationException`, so writers can continue while iterating
+	 *
+	 * Each entry is returned at most once and reflects the state of the cache at some point at or after the creation of the iterator
+	 *
+	 * The entries are returned in no particular order, and iterating does not count as an access
+	 *
+	 * Removing an entry through the iterator removes it from the cache
+	 *
+	 * @return an iterator over immutable entries
+	 */
+	@Override
+	public Iterator<Map.Entry<K, V>> iterator() {
+		return new EntryIterator();
+	}
+
+	/**
+	 * Returns the current size of this cache
+	 *
+	 * This method does not block
+	 *
+	 * Entries that have expired but have not been released yet are included
+	 *
+	 * @return the number of elements contained in this cache
+	 */
+	public int size() {
+		return mMap.size();
+	}
+
+	/**
+	 * Returns the current total weight of this cache
+	 *
+	 * Without a `Cache.Weigher`, this is the number of elements
+	 *
+	 * @return the total weight of the elements contained in this cache
+	 */
+	public long weight() {
+		lock();
+
+		try {
+			long weight = 0;
+
+			for (NodeList<K, V> list : mLists) {
+				weight += list.mWeight;
+			}
+
+			return weight;
+		}
+		finally {
+			unlock();
+		}
+	}
+
+	/**
+	 * Override this method if you want to be informed whenever an entry is removed from the cache
+	 *
+	 * You may use this if you must manually release resources when an element is deleted
+	 *
+	 * This is called while holding the cache's lock, unless the notifications are deferred (see `deferRemovalNotifications(...)`)
+	 *
+	 * The default implementation does nothing
+	 *
+	 * @param key the key that was removed
+	 * @param value the value that was removed
+	 * @param causedManually whether the removal was caused manually (through `put(...)` or `delete(...)`) or automatically
+	 */
+	@SuppressWarnings("unused")
+	public void onEntryRemoved(final K key, final V value, final boolean causedManually) { }
+
+	/** Drops entries while the size exceeds the maximum (requires `mLock`) */
+	private void evictEntries() {
+		if (mPolicy != null) {
+			while (mPolicy.weight() > mMaximumWeight) {
+				evict(mPolicy.selectVictim(), true);
+			}
+
+			return;
+		}
+
+		// the first entry that has been moved from the admission window to the main part during this call
+		Node<K, V> candidate = null;
+
+		while (mWindow.mWeight > mWindowWeight && mWindow.mHead != null) {
+			final Node<K, V> node = mWindow.mHead;
+			mWindow.unlink(node);
+			mMain.linkLast(node);
+
+			if (candidate == null) {
+				candidate = node;
+			}
+		}
+
+		while (mMain.mWeight + mWindow.mWeight > mMaximumWeight) {
+			final Node<K, V> victim = mMain.mHead != null ? mMain.mHead : mWindow.mHead;
+
+			// if there is no competition, simply drop the eldest entry
+			if (candidate == null || candidate == victim) {
+				if (candidate == victim) {
+					candidate = candidate.mNext;
+				}
+
+				evict(victim, true);
+			}
+			// otherwise let the candidate replace the victim only if the candidate is more popular
+			else if (mSketch.frequency(candidate.mKey) > mSketch.frequency(victim.mKey)) {
+				evict(victim, true);
+			}
+			else {
+				final Node<K, V> rejected = candidate;
+				candidate = candidate.mNext;
+				evict(rejected, true);
+			}
+		}
+	}
+
+	private int weigh(final K key, final V value) {
+		if (mWeigher == null) {
+			return 1;
+		}
+
+		final int weight = mWeigher.weigh(key, value);
+
+		if (weight < 0) {
+			throw new RuntimeException("weight must not be negative");
+		}
+
+		return weight;
+	}
+
+	/** Adds the given entry to the index under each of the given tags, or clears its tags if there are none (requires `mLock`) */
+	private void tag(final Node<K, V> node, final Object[] tags) {
+		node.mTags = tags;
+
+		if (tags == null) {
+			return;
+		}
+
+		if (mTagIndex == null) {
+			mTagIndex = new HashMap<Object, HashSet<Node<K, V>>>();
+		}
+
+		for (Object tag : tags) {
+			HashSet<Node<K, V>> nodes = mTagIndex.get(tag);
+
+			if (nodes == null) {
+				nodes = new HashSet<Node<K, V>>();
+				mTagIndex.put(tag, nodes);
+			}
+
+			nodes.add(node);
+		}
+	}
+
+	/** Removes the given entry from the index of the tags (requires `mLock`) */
+	private void untag(final Node<K, V> node) {
+		final Object[] tags = node.mTags;
+
+		if (tags == null) {
+			return;
+		}
+
+		node.mTags = null;
+
+		for (Object tag : tags) {
+			final HashSet<Node<K, V>> nodes = mTagIndex.get(tag);
+
+			// the set may have been taken from the index already by `invalidateTag(...)`
+			if (nodes != null) {
+				nodes.remove(node);
+
+				if (nodes.isEmpty()) {
+					mTagIndex.remove(tag);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the given entry from the cache (requires `mLock`)
+	 *
+	 * @param node the entry to drop
+	 * @param spill whether to move the entry to the second level (if any)
+	 */
+	private void evict(final Node<K, V> node, final boolean spill) {
+		mMap.remove(maskNull(node.mKey));
+		node.mList.unlink(node);
+		descheduleExpiration(node);
+		untag(node);
+		final V value = node.getValue();
+
+		// the removal of a value that has been reclaimed is not reported, as there is nothing left to release
+		if (value != null || !node.isCollected()) {
+			notifyRemoval(node.mKey, value, false);
+		}
+
+		if (spill) {
+			final CacheBudget.Shadow shadow = mShadow;
+
+			if (shadow != null) {
+				shadow.add(node.mKey, node.mWeight);
+			}
+		}
+
+		if (spill && mDiskCache != null && value != null) {
+			// the entry must hold on to the value until it has been written
+			node.mValue = value;
+			mSpills.add(node);
+		}
+	}
+
+	/** Marks the value for the given key in the second level as outdated, in order with the entries that are dropped (requires `mLock`) */
+	private void invalidateSecondLevel(final K key) {
+		if (mDiskCache != null) {
+			mSpills.add(new Node<K, V>(key, null, 0));
+		}
+	}
+
+	/**
+	 * Writes the entries that have been dropped to the second level and invalidates outdated keys there, in the order of the changes
+	 *
+	 * This must not be called while holding `mLock`
+	 */
+	private void writeSecondLevel() {
+		final DiskCache<K, V> diskCache = mDiskCache;
+
+		// nothing to do, which is the common case for lookups and writes
+		if (diskCache == null || mSpills.isEmpty()) {
+			return;
+		}
+
+		mSpillLock.lock();
+
+		try {
+			drainSpills(diskCache);
+		}
+		finally {
+			mSpillLock.unlock();
+		}
+	}
+
+	/** Applies the queued changes to the second level in their order (requires `mSpillLock`) */
+	private void drainSpills(final DiskCache<K, V> diskCache) {
+		Node<K, V> node;
+		while ((node = mSpills.poll()) != null) {
+			final V value = node.getValue();
+
+			if (value != null) {
+				diskCache.put(node.mKey, value);
+			}
+			else if (diskCache.contains(node.mKey)) {
+				diskCache.remove(node.mKey);
+			}
+		}
+	}
+
+	/**
+	 * Removes the value for the given key from the second level, after applying all changes that are still queued or being written by another thread
+	 *
+	 * Otherwise, an older value could be found there although the key has been removed or overwritten since
+	 */
+	private V takeFromSecondLevel(final DiskCache<K, V> diskCache, final K key) {
+		mSpillLock.lock();
+
+		try {
+			drainSpills(diskCache);
+
+			return diskCache.remove(key);
+		}
+		finally {
+			mSpillLock.unlock();
+		}
+	}
+
+	/** Moves the entry for the given key from the second level or from a restored snapshot back to this cache, if there is one */
+	private V promote(final K key) {
+		final DiskCache<K, V> diskCache = mDiskCache;
+		final CacheSnapshot<K, V> restored = mRestored;
+
+		V value = null;
+
+		if (diskCache != null) {
+			value = takeFromSecondLevel(diskCache, key);
+		}
+
+		if (value == null && restored != null) {
+			value = restored.take(key);
+		}
+
+		if (value == null) {
+			return null;
+		}
+
+		final CacheStats stats = mStats;
+
+		if (stats != null) {
+			stats.recordLoad();
+		}
+
+		// if another thread has inserted a value meanwhile, that value wins
+		final V current = putEntry(key, value, -1L, true, null, null);
+
+		return current != null ? current : value;
+	}
+
+	/**
+	 * Moves the entries for the given keys from the second level or from a restored snapshot back to this cache, acquiring the lock only once
+	 *
+	 * @param keys the keys that are missing in this cache
+	 * @param out the map that the values that have been found are added to
+	 */
+	private void promoteAll(final Collection<K> keys, final Map<K, V> out) {
+		final DiskCache<K, V> diskCache = mDiskCache;
+		final CacheSnapshot<K, V> restored = mRestored;
+		final LinkedHashMap<K, V> promoted = new LinkedHashMap<K, V>();
+		final ArrayList<K> remaining = new ArrayList<K>();
+
+		if (diskCache != null) {
+			mSpillLock.lock();
+
+			try {
+				// apply the queued changes first, so that no outdated value is found (see `takeFromSecondLevel(...)`)
+				drainSpills(diskCache);
+
+				for (K key : keys) {
+					final V value = diskCache.remove(key);
+
+					if (value != null) {
+						promoted.put(key, value);
+					}
+					else {
+						remaining.add(key);
+					}
+				}
+			}
+			finally {
+				mSpillLock.unlock();
+			}
+		}
+		else {
+			remaining.addAll(keys);
+		}
+
+		if (restored != null && !remaining.isEmpty()) {
+			restored.takeAll(remaining, promoted);
+		}
+
+		if (promoted.isEmpty()) {
+			return;
+		}
+
+		final CacheStats stats = mStats;
+
+		lock();
+
+		try {
+			final long now = currentTime();
+			runMaintenance(now);
+
+			for (Map.Entry<K, V> entry : promoted.entrySet()) {
+				if (stats != null) {
+					stats.recordLoad();
+				}
+
+				// if another thread has inserted a value meanwhile, that value wins
+				final V current = putLocked(entry.getKey(), entry.getValue(), -1L, true, now, null);
+				out.put(entry.getKey(), current != null ? current : entry.getValue());
+			}
+
+			evictEntries();
+		}
+		finally {
+			unlock();
+		}
+
+		writeSecondLevel();
+	}
+
+	/** Sets the expiration times of the given entry after it has been written and schedules its expiration (requires `mLock`) */
+	private void scheduleExpiration(final Node<K, V> node, final long now, final long timeToLiveNanos) {
+		final long expireAfterWrite = timeToLiveNanos >= 0 ? timeToLiveNanos : mExpireAfterWriteNanos;
+		node.mWriteDeadline = expireAfterWrite > 0 ? now + expireAfterWrite : NO_DEADLINE;
+		node.mAccessTime = mExpireAfterAccessNanos > 0 ? now : UNSTAMPED;
+
+		final long deadline = deadlineOf(node);
+
+		if (deadline == NO_DEADLINE) {
+			descheduleExpiration(node);
+		}
+		else {
+			if (mTimerWheel == null) {
+				mTimerWheel = new TimerWheel<K, V>(new TimerWheel.Listener<K, V>() {
+
+					@Override
+					public boolean onTimerExpired(final Node<K, V> node, final long now) {
+						// the entry may have been removed already
+						if (node.mList == null) {
+							return true;
+						}
+
+						final long deadline = deadlineOf(node);
+
+						if (deadline == NO_DEADLINE) {
+							return true;
+						}
+						else if (now - deadline >= 0) {
+							evict(node, false);
+
+							return true;
+						}
+						// the entry has been read since it was scheduled or is in a bucket that is coarser than its deadline
+						else {
+							node.mTimerDeadline = deadline;
+
+							return false;
+						}
+					}
+
+				}, now);
+			}
+
+			node.mTimerDeadline = deadline;
+			mTimerWheel.schedule(node);
+		}
+	}
+
+	/** Removes the given entry from the schedule of expirations (requires `mLock`) */
+	private void descheduleExpiration(final Node<K, V> node) {
+		if (mTimerWheel != null) {
+			mTimerWheel.deschedule(node);
+		}
+	}
+
+	/** Returns the time at which the given entry expires, or `NO_DEADLINE` */
+	private long deadlineOf(final Node<K, V> node) {
+		long deadline = node.mWriteDeadline;
+
+		final long expireAfterAccess = mExpireAfterAccessNanos;
+		final long accessTime = node.mAccessTime;
+
+		if (expireAfterAccess > 0 && accessTime != UNSTAMPED) {
+			final long accessDeadline = accessTime + expireAfterAccess;
+
+			if (deadline == NO_DEADLINE || accessDeadline - deadline < 0) {
+				deadline = accessDeadline;
+			}
+		}
+
+		return deadline;
+	}
+
+	private boolean isExpired(final Node<K, V> node, final long now) {
+		final long deadline = deadlineOf(node);
+
+		return deadline != NO_DEADLINE && now - deadline >= 0;
+	}
+
+	/** Drops the given entry if it has expired and if the lock is not held by another thread */
+	private void tryExpire(final Node<K, V> node, final long now) {
+		if (mLock.tryLock()) {
+			try {
+				if (node.mList != null && isExpired(node, now)) {
+					evict(node, false);
+				}
+
+				runMaintenance(now);
+			}
+			finally {
+				unlock();
+			}
+		}
+	}
+
+	private long currentTime() {
+		return mExpiring ? System.nanoTime() : 0L;
+	}
+
+	private static long toExpirationNanos(final long duration, final TimeUnit unit) {
+		if (duration < 0) {
+			throw new RuntimeException("duration must not be negative");
+		}
+
+		final long nanos = unit.toNanos(duration);
+
+		// a duration of zero disables the expiration, while very long durations are treated as infinite
+		return nanos >= MAX_DURATION_NANOS ? 0L : nanos;
+	}
+
+	/** Applies a single access of the given entry to the cache (requires `mLock`) */
+	private void onAccess(final Node<K, V> node) {
+		if (mSketch != null) {
+			mSketch.increment(node.mKey);
+		}
+
+		if (mPolicy != null) {
+			mPolicy.onAccess(node);
+		}
+		else if (mAccessOrder) {
+			node.mList.moveToTail(node);
+		}
+	}
+
+	/** Acquires `mLock` and records the time spent waiting for it if statistics are enabled */
+	private void lock() {
+		final CacheStats stats = mStats;
+
+		if (stats == null) {
+			mLock.lock();
+		}
+		// only measure the time if the lock is contended so that the uncontended case stays cheap
+		else if (mLock.tryLock()) {
+			stats.recordLockWait(0);
+		}
+		else {
+			final long start = System.nanoTime();
+			mLock.lock();
+			stats.recordLockWait(System.nanoTime() - start);
+		}
+	}
+
+	/** Reports the removal of an entry to the statistics and to `onEntryRemoved(...)` */
+	private void notifyRemoval(final K key, final V value, final boolean causedManually) {
+		final CacheStats stats = mStats;
+
+		if (stats != null) {
+			stats.recordRemoval(causedManually);
+		}
+
+		if (mDeferRemovals) {
+			// the removal is reported once the lock has been released (see `unlock()`)
+			mRemovals.add(new Removal<K, V>(key, value, causedManually));
+		}
+		else {
+			onEntryRemoved(key, value, causedManually);
+		}
+	}
+
+	/** Releases `mLock` and reports the deferred removals once the lock is no longer held */
+	private void unlock() {
+		mLock.unlock();
+
+		if (!mRemovals.isEmpty() && !mLock.isHeldByCurrentThread()) {
+			final Executor executor = mRemovalExecutor;
+
+			if (executor == null) {
+				deliverRemovals();
+			}
+			// a single pending task delivers all removals that have been queued before it starts
+			else if (mRemovalTaskScheduled.compareAndSet(false, true)) {
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						mRemovalTaskScheduled.set(false);
+						deliverRemovals();
+					}
+
+				});
+			}
+		}
+	}
+
+	/** Reports the queued removals to `onEntryRemoved(...)` in order unless another thread is doing so already */
+	private void deliverRemovals() {
+		// check again after releasing the lock, as the removals that have been queued meanwhile may have been missed by the other thread
+		while (!mRemovals.isEmpty() && mRemovalLock.tryLock()) {
+			try {
+				Removal<K, V> removal;
+				while ((removal = mRemovals.poll()) != null) {
+					onEntryRemoved(removal.mKey, removal.mValue, removal.mCausedManually);
+				}
+			}
+			finally {
+				mRemovalLock.unlock();
+			}
+		}
+	}
+
+	/** Performs the pending maintenance if the lock is not held by another thread */
+	private void tryRunMaintenance() {
+		if (mLock.tryLock()) {
+			try {
+				runMaintenance(currentTime());
+			}
+			finally {
+				unlock();
+			}
+		}
+	}
+
+	/** Applies the recorded accesses to the cache and drops expired entries as well as entries whose values have been reclaimed (requires `mLock`) */
+	@SuppressWarnings("unchecked")
+	private void runMaintenance(final long now) {
+		if (mReadBuffer != null) {
+			mReadBuffer.drainTo(mReadBufferSink);
+		}
+
+		Reference<? extends V> reference;
+		while ((reference = mCollectedValues.poll()) != null) {
+			final Node<K, V> node = ((SoftValue<K, V>) reference).mNode;
+
+			// the entry may have been removed or overwritten since
+			if (node.mList != null && node.mValue == reference) {
+				evict(node, false);
+			}
+		}
+
+		if (mTimerWheel != null) {
+			mTimerWheel.advance(now);
+		}
+	}
+
+	static Object maskNull(final Object key) {
+		return key == null ? NULL_KEY : key;
+	}
+
+	/**
+	 * Converts keys or values to bytes and back, e.g. for storing them on disk
+	 *
+	 * @param <T> the type of the objects to convert
+	 */
+	public static interface Codec<T> {
+
+		/**
+		 * Converts the given object to bytes
+		 *
+		 * @param object the object to convert
+		 * @return the bytes representing the object
+		 */
+		public byte[] encode(T object);
+
+		/**
+		 * Restores an object from the given bytes
+		 *
+		 * @param data the bytes as returned by `encode(...)`
+		 * @return the restored object
+		 */
+		public T decode(byte[] data);
+
+	}
+
+	/**
+	 * Provides the values for keys that are missing in the cache, e.g. by reading them from the network or by decoding them
+	 *
+	 * @param <K> the type of the keys
+	 * @param <V> the type of the values
+	 */
+	public static interface Loader<K, V> {
+
+		/**
+		 * Returns the value for the given key
+		 *
+		 * @param key the key to load the value for
+		 * @return the value or `null` if there is none
+		 */
+		public V load(K key);
+
+	}
+
+	/**
+	 * Calculates the weight of cache entries, e.g. their approximate size in bytes
+	 *
+	 * The weight of an entry must not change while it is in the cache
+	 *
+	 * @param <K> the type of the keys
+	 * @param <V> the type of the values
+	 */
+	public static interface Weigher<K, V> {
+
+		/**
+		 * Returns the weight of the given entry
+		 *
+		 * @param key the key of the entry
+		 * @param value the value of the entry
+		 * @return the weight, which must not be negative
+		 */
+		public int weigh(K key, V value);
+
+	}
+
+	/** Load of a single value that other threads requesting the same key can wait for */
+	private static final class Loading<V> {
+
+		private final CountDownLatch mDone = new CountDownLatch(1);
+		/** Whether this is a reload in the background, which other threads never wait for */
+		final boolean mRefresh;
+		/** Whether the key has been removed while the value was being loaded, so that the value must not be added */
+		volatile boolean mInvalidated;
+		private V mValue;
+		private Throwable mFailure;
+
+		Loading(final boolean refresh) {
+			mRefresh = refresh;
+		}
+
+		/** Publishes the result of the load and releases all waiting threads */
+		void complete(final V value, final Throwable failure) {
+			mValue = value;
+			mFailure = failure;
+			mDone.countDown();
+		}
+
+		/** Waits for the load to complete and returns its result or rethrows its failure */
+		V await() {
+			boolean interrupted = false;
+
+			// keep waiting if interrupted, as the caller has no way to handle the interruption, and restore the flag afterwards
+			while (true) {
+				try {
+					mDone.await();
+					break;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+
+			if (mFailure != null) {
+				throw new RuntimeException("Loading the value failed", mFailure);
+			}
+
+			return mValue;
+		}
+
+	}
+
+	/** Iterates over the underlying concurrent map and skips entries that have expired */
+	private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+		private final Iterator<Node<K, V>> mNodes = mMap.values().iterator();
+		private Map.Entry<K, V> mNext;
+		private Map.Entry<K, V> mLast;
+
+		@Override
+		public boolean hasNext() {
+			while (mNext == null && mNodes.hasNext()) {
+				final Node<K, V> node = mNodes.next();
+				final V value = node.getValue();
+
+				if ((!mExpiring || !isExpired(node, System.nanoTime())) && (value != null || !node.isCollected())) {
+					mNext = new ImmutableEntry<K, V>(node.mKey, value);
+				}
+			}
+
+			return mNext != null;
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			mLast = mNext;
+			mNext = null;
+
+			return mLast;
+		}
+
+		@Override
+		public void remove() {
+			if (mLast == null) {
+				throw new IllegalStateException();
+			}
+
+			Cache.this.remove(mLast.getKey());
+			mLast = null;
+		}
+
+	}
+
+	/** Entry that is returned from iterators and that cannot be changed */
+	static final class ImmutableEntry<K, V> implements Map.Entry<K, V> {
+
+		private final K mKey;
+		private final V mValue;
+
+		ImmutableEntry(final K key, final V value) {
+			mKey = key;
+			mValue = value;
+		}
+
+		@Override
+		public K getKey() {
+			return mKey;
+		}
+
+		@Override
+		public V getValue() {
+			return mValue;
+		}
+
+		@Override
+		public V setValue(final V value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof Map.Entry)) {
+				return false;
+			}
+
+			final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+
+			return (mKey == null ? entry.getKey() == null : mKey.equals(entry.getKey())) && (mValue == null ? entry.getValue() == null : mValue.equals(entry.getValue()));
+		}
+
+		@Override
+		public int hashCode() {
+			return (mKey == null ? 0 : mKey.hashCode()) ^ (mValue == null ? 0 : mValue.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return mKey + "=" + mValue;
+		}
+
+	}
+
+	/** Removal that has yet to be reported to `onEntryRemoved(...)` */
+	private static final class Removal<K, V> {
+
+		final K mKey;
+		final V mValue;
+		final boolean mCausedManually;
+
+		Removal(final K key, final V value, final boolean causedManually) {
+			mKey = key;
+			mValue = value;
+			mCausedManually = causedManually;
+		}
+
+	}
+
+	/** Single entry of the cache that is also a link in the order of entries */
+	static final class Node<K, V> {
+
+		final K mKey;
+		/** The value, or a `SoftValue` that holds the value softly */
+		volatile Object mValue;
+		/** The weight of the entry (guarded by the cache's lock) */
+		int mWeight;
+		/** The time (in nanoseconds) at which the entry expires regardless of accesses, or `NO_DEADLINE` */
+		volatile long mWriteDeadline;
+		/** The time (in nanoseconds) of the last access if the entry expires after accesses, or `UNSTAMPED` */
+		volatile long mAccessTime;
+		/** The time (in nanoseconds) of the last write if the value is reloaded after writes, or `UNSTAMPED` */
+		volatile long mWriteTime;
+		/** The time (in nanoseconds) for which the entry is scheduled in the timing wheel (guarded by the cache's lock) */
+		long mTimerDeadline;
+		/** The previous entry in the same bucket of the timing wheel (guarded by the cache's lock) */
+		Node<K, V> mTimerPrev;
+		/** The next entry in the same bucket of the timing wheel, or `null` if the entry is not scheduled (guarded by the cache's lock) */
+		Node<K, V> mTimerNext;
+		/** The previous (older) entry in the list (guarded by the cache's lock) */
+		Node<K, V> mPrev;
+		/** The next (more recent) entry in the list (guarded by the cache's lock) */
+		Node<K, V> mNext;
+		/** The list that the entry is part of, or `null` if the entry has been removed (guarded by the cache's lock) */
+		NodeList<K, V> mList;
+		/** The tags of the entry, or `null` if it has none (guarded by the cache's lock) */
+		Object[] mTags;
+
+		Node(final K key, final V value, final int weight) {
+			mKey = key;
+			mValue = value;
+			mWeight = weight;
+			mWriteDeadline = NO_DEADLINE;
+			mAccessTime = UNSTAMPED;
+			mWriteTime = UNSTAMPED;
+		}
+
+		/** Returns the value, which is `null` if it has been held softly and has been reclaimed */
+		@SuppressWarnings("unchecked")
+		V getValue() {
+			final Object value = mValue;
+
+			if (value instanceof SoftValue) {
+				return ((SoftValue<K, V>) value).get();
+			}
+			else {
+				return (V) value;
+			}
+		}
+
+		/** Returns whether the value has been held softly and has been reclaimed */
+		boolean isCollected() {
+			final Object value = mValue;
+
+			return value instanceof SoftValue && ((SoftValue<?, ?>) value).get() == null;
+		}
+
+	}
+
+	/** Soft reference to a value that leads back to its entry once the value has been reclaimed */
+	static final class SoftValue<K, V> extends SoftReference<V> {
+
+		final Node<K, V> mNode;
+
+		SoftValue(final V value, final Node<K, V> node, final ReferenceQueue<V> queue) {
+			super(value, queue);
+			mNode = node;
+		}
+
+	}
+
+	/** Doubly-linked list of entries from the eldest to the most recent one (guarded by the cache's lock) */
+	static final class NodeList<K, V> {
+
+		Node<K, V> mHead;
+		Node<K, V> mTail;
+		int mCount;
+		/** The total weight of the entries in this list */
+		long mWeight;
+		/** The position of this list among the lists of an eviction policy */
+		int mLevel;
+
+		/** Appends the given entry to the end of this list */
+		void linkLast(final Node<K, V> node) {
+			node.mPrev = mTail;
+			node.mNext = null;
+
+			if (mTail == null) {
+				mHead = node;
+			}
+			else {
+				mTail.mNext = node;
+			}
+
+			mTail = node;
+			node.mList = this;
+			mCount++;
+			mWeight += node.mWeight;
+		}
+
+		/** Removes the given entry from this list */
+		void unlink(final Node<K, V> node) {
+			if (node.mPrev == null) {
+				mHead = node.mNext;
+			}
+			else {
+				node.mPrev.mNext = node.mNext;
+			}
+
+			if (node.mNext == null) {
+				mTail = node.mPrev;
+			}
+			else {
+				node.mNext.mPrev = node.mPrev;
+			}
+
+			node.mPrev = null;
+			node.mNext = null;
+			node.mList = null;
+			mCount--;
+			mWeight -= node.mWeight;
+		}
+
+		/** Changes the weight of the given entry in this list */
+		void updateWeight(final Node<K, V> node, final int weight) {
+			mWeight += weight - node.mWeight;
+			node.mWeight = weight;
+		}
+
+		/** Moves the given entry to the end of this list, i.e. marks it as the most recent one */
+		void moveToTail(final Node<K, V> node) {
+			if (node != mTail) {
+				unlink(node);
+				linkLast(node);
+			}
+		}
+
+	}
 
 }
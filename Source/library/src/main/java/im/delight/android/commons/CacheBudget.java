@@ -0,0 +1,459 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Total amount of memory that is shared by multiple caches and moved between them depending on where it is most useful
+ *
+ * Each registered cache remembers the keys that it has dropped most recently, covering a fixed number of bytes (its shadow)
+ *
+ * A lookup that misses but finds its key in the shadow would have been a hit if the cache had been larger by that number of bytes, so the hits in the shadows measure the marginal hit rate per byte of each cache
+ *
+ * During each rebalancing, that number of bytes is moved from the cache with the fewest hits in its shadow to the cache with the most hits in its shadow
+ *
+ * The hits that a cache would lose by shrinking are estimated from the same shadow, so memory is moved only if the difference between the two caches is large enough
+ *
+ * The capacities are set through `Cache.setMaximumWeight(...)`, so the caches should not be registered with `CacheTrimmer` at the same time
+ *
+ * Registered caches are referenced weakly, so registering a cache does not keep it from being garbage-collected
+ *
+ * This implementation is thread-safe
+ */
+public final class CacheBudget {
+
+	/** The share of the total budget (in percent) that is moved per rebalancing and that each cache retains at least */
+	private static final int STEP_PERCENT = 5;
+	/** How many hits the cache that grows must have had in its shadow, relative to the cache that shrinks (in percent) */
+	private static final int MARGIN_PERCENT = 125;
+	/** The minimum number of hits in the shadow of the cache that grows, so that a few random hits do not move any memory */
+	private static final int MIN_SHADOW_HITS = 8;
+	private final long mTotalBytes;
+	/** The number of bytes that is moved per rebalancing, which is also the size of each shadow */
+	private final long mStepBytes;
+	private final ArrayList<Registration> mRegistrations;
+	private Timer mTimer;
+
+	/**
+	 * Creates a new budget with the given total size
+	 *
+	 * @param totalBytes the total number of bytes that all registered caches may use together
+	 */
+	public CacheBudget(final long totalBytes) {
+		if (totalBytes < 1) {
+			throw new RuntimeException("totalBytes must be positive");
+		}
+
+		mTotalBytes = totalBytes;
+		mStepBytes = Math.max(totalBytes * STEP_PERCENT / 100, 1);
+		mRegistrations = new ArrayList<Registration>();
+	}
+
+	/**
+	 * Registers the given cache so that its capacity is managed by this budget
+	 *
+	 * The new cache receives an equal share of the total budget, which the other caches give up in proportion to their current shares
+	 *
+	 * @param cache the cache to register
+	 * @param bytesPerUnit the number of bytes per unit of the cache's weight, i.e. `1` if the cache's weigher returns bytes, or the average size of an entry if every entry has a weight of `1`
+	 */
+	public synchronized void register(final Cache<?, ?> cache, final long bytesPerUnit) {
+		if (bytesPerUnit < 1) {
+			throw new RuntimeException("bytesPerUnit must be positive");
+		}
+
+		removeCollected();
+
+		if (find(cache) != null) {
+			return;
+		}
+
+		final Registration registration = new Registration(cache, bytesPerUnit);
+		mRegistrations.add(registration);
+		scaleShares(mTotalBytes - mTotalBytes / mRegistrations.size(), registration);
+		registration.mBytes = mTotalBytes - sumOfShares(registration);
+
+		cache.setShadow(registration.mShadow);
+
+		for (Registration each : mRegistrations) {
+			apply(each);
+		}
+	}
+
+	/**
+	 * Unregisters the given cache, whose share of the total budget is given to the other caches in proportion to their current shares
+	 *
+	 * The capacity of the cache remains at its current value
+	 *
+	 * @param cache the cache to unregister
+	 */
+	public synchronized void unregister(final Cache<?, ?> cache) {
+		final Registration registration = find(cache);
+
+		if (registration != null) {
+			cache.setShadow(null);
+			mRegistrations.remove(registration);
+			removeCollected();
+			scaleShares(mTotalBytes, null);
+
+			for (Registration each : mRegistrations) {
+				apply(each);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes that the given cache may currently use
+	 *
+	 * @param cache the cache to look up
+	 * @return the number of bytes or `0` if the cache has not been registered
+	 */
+	public synchronized long getShare(final Cache<?, ?> cache) {
+		final Registration registration = find(cache);
+
+		return registration != null ? registration.mBytes : 0;
+	}
+
+	/**
+	 * Moves memory from the cache where it is least useful to the cache where it is most useful, based on the lookups since the last rebalancing
+	 *
+	 * This is called automatically once `start(...)` has been called, but it may be called manually as well
+	 */
+	public synchronized void rebalance() {
+		if (removeCollected()) {
+			scaleShares(mTotalBytes, null);
+		}
+
+		Registration receiver = null;
+		long receiverHits = -1;
+		Registration donor = null;
+		long donorHits = Long.MAX_VALUE;
+
+		for (Registration registration : mRegistrations) {
+			final long hits = registration.mShadow.takeHits();
+
+			if (hits > receiverHits) {
+				receiver = registration;
+				receiverHits = hits;
+			}
+
+			// every cache retains at least one step
+			if (hits < donorHits && registration.mBytes - mStepBytes >= mStepBytes) {
+				donor = registration;
+				donorHits = hits;
+			}
+		}
+
+		if (receiver != null && donor != null && receiver != donor && receiverHits >= MIN_SHADOW_HITS && receiverHits * 100 > donorHits * MARGIN_PERCENT) {
+			donor.mBytes -= mStepBytes;
+			receiver.mBytes += mStepBytes;
+
+			// shrink first so that the total is never exceeded
+			apply(donor);
+			apply(receiver);
+		}
+	}
+
+	/**
+	 * Starts rebalancing the caches periodically on a background thread
+	 *
+	 * The period should be long enough for each cache to see a meaningful number of lookups, e.g. a minute
+	 *
+	 * @param period the time between two rebalancings
+	 * @param unit the unit of the period
+	 */
+	public synchronized void start(final long period, final TimeUnit unit) {
+		if (period <= 0) {
+			throw new RuntimeException("period must be positive");
+		}
+
+		stop();
+
+		final long periodMillis = Math.max(unit.toMillis(period), 1);
+
+		mTimer = new Timer(true);
+		mTimer.schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				rebalance();
+			}
+
+		}, periodMillis, periodMillis);
+	}
+
+	/** Stops rebalancing the caches periodically */
+	public synchronized void stop() {
+		if (mTimer != null) {
+			mTimer.cancel();
+			mTimer = null;
+		}
+	}
+
+	/** Sets the capacity of the cache and the size of its shadow from its share (requires the monitor) */
+	private void apply(final Registration registration) {
+		final Cache<?, ?> cache = registration.mCache.get();
+
+		if (cache != null) {
+			cache.setMaximumWeight(Math.max(registration.mBytes / registration.mBytesPerUnit, 1));
+			registration.mShadow.setMaximumWeight(Math.max(mStepBytes / registration.mBytesPerUnit, 1));
+		}
+	}
+
+	/** Scales the shares of all caches except the given one so that they add up to the given number of bytes (requires the monitor) */
+	private void scaleShares(final long targetBytes, final Registration excluded) {
+		final long currentBytes = sumOfShares(excluded);
+		int count = 0;
+
+		for (Registration registration : mRegistrations) {
+			if (registration != excluded) {
+				count++;
+			}
+		}
+
+		long remaining = targetBytes;
+		int index = 0;
+
+		for (Registration registration : mRegistrations) {
+			if (registration == excluded) {
+				continue;
+			}
+
+			index++;
+
+			if (index == count) {
+				// the last cache receives the remainder of the rounding
+				registration.mBytes = remaining;
+			}
+			else if (currentBytes > 0) {
+				registration.mBytes = (long) ((double) registration.mBytes / currentBytes * targetBytes);
+			}
+			else {
+				registration.mBytes = targetBytes / count;
+			}
+
+			remaining -= registration.mBytes;
+		}
+	}
+
+	private long sumOfShares(final Registration excluded) {
+		long sum = 0;
+
+		for (Registration registration : mRegistrations) {
+			if (registration != excluded) {
+				sum += registration.mBytes;
+			}
+		}
+
+		return sum;
+	}
+
+	/** Removes the registrations of caches that have been garbage-collected (requires the monitor) */
+	private boolean removeCollected() {
+		boolean removed = false;
+
+		final Iterator<Registration> iterator = mRegistrations.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().mCache.get() == null) {
+				iterator.remove();
+				removed = true;
+			}
+		}
+
+		return removed;
+	}
+
+	private Registration find(final Cache<?, ?> cache) {
+		for (Registration registration : mRegistrations) {
+			if (registration.mCache.get() == cache) {
+				return registration;
+			}
+		}
+
+		return null;
+	}
+
+	private static final class Registration {
+
+		private final WeakReference<Cache<?, ?>> mCache;
+		private final long mBytesPerUnit;
+		private final Shadow mShadow;
+		/** The number of bytes that the cache may use (guarded by the budget's monitor) */
+		private long mBytes;
+
+		Registration(final Cache<?, ?> cache, final long bytesPerUnit) {
+			mCache = new WeakReference<Cache<?, ?>>(cache);
+			mBytesPerUnit = bytesPerUnit;
+			mShadow = new Shadow();
+		}
+
+	}
+
+	/**
+	 * The keys that a cache has dropped most recently due to its size limit, with their weights
+	 *
+	 * Only the hash codes of the keys are stored, so the keys and their values are not kept from being garbage-collected
+	 *
+	 * Misses are recorded without locking, as they are recorded during lookups, while dropped keys are added under the shadow's monitor
+	 *
+	 * For a cache that consists of several segments, the shadow can be split into one part per segment, so that the segments do not contend for the same monitor
+	 *
+	 * This implementation is thread-safe
+	 */
+	static final class Shadow {
+
+		/** The remembered keys by their hash codes */
+		private final ConcurrentHashMap<Integer, Dropped> mDropped;
+		/** The remembered keys from the eldest to the most recently dropped key, which may still contain keys that have been removed from `mDropped` (guarded by the monitor) */
+		private final LinkedList<Dropped> mOrder;
+		/** The total weight of the keys in `mDropped` */
+		private final AtomicLong mWeight;
+		/** The number of lookups since the last call of `takeHits()` that have missed in the cache but whose keys have been found here */
+		private final AtomicLong mHits;
+		/** The maximum total weight of the remembered keys (guarded by the monitor) */
+		private long mMaximumWeight;
+		/** The shadows of the segments, among which the maximum weight is divided and whose hits are counted here, or `null` (guarded by the monitor) */
+		private Shadow[] mParts;
+
+		Shadow() {
+			mDropped = new ConcurrentHashMap<Integer, Dropped>();
+			mOrder = new LinkedList<Dropped>();
+			mWeight = new AtomicLong();
+			mHits = new AtomicLong();
+			mMaximumWeight = 1;
+		}
+
+		/** Records that the given key has been dropped from the cache */
+		synchronized void add(final Object key, final int weight) {
+			if (weight > mMaximumWeight) {
+				return;
+			}
+
+			final Dropped dropped = new Dropped(hash(key), weight);
+			final Dropped previous = mDropped.put(dropped.mHash, dropped);
+
+			if (previous != null) {
+				mWeight.addAndGet(-previous.mWeight);
+			}
+
+			mWeight.addAndGet(weight);
+			mOrder.add(dropped);
+			trim();
+
+			// drop the keys that have been found by lookups from the order as well, once they make up most of it
+			if (mOrder.size() > mDropped.size() * 2 + 16) {
+				final Iterator<Dropped> iterator = mOrder.iterator();
+
+				while (iterator.hasNext()) {
+					final Dropped each = iterator.next();
+
+					if (mDropped.get(each.mHash) != each) {
+						iterator.remove();
+					}
+				}
+			}
+		}
+
+		/** Records that a lookup for the given key has missed in the cache, which never blocks */
+		void recordMiss(final Object key) {
+			final Dropped dropped = mDropped.remove(hash(key));
+
+			// the key is about to be added to the cache again, so it is counted only once
+			if (dropped != null) {
+				mWeight.addAndGet(-dropped.mWeight);
+				mHits.incrementAndGet();
+			}
+		}
+
+		/** Splits this shadow into the given number of parts, one for each segment of a cache, which replace any previous parts */
+		synchronized Shadow[] split(final int count) {
+			mParts = new Shadow[count];
+
+			for (int i = 0; i < count; i++) {
+				mParts[i] = new Shadow();
+			}
+
+			setMaximumWeight(mMaximumWeight);
+
+			return mParts.clone();
+		}
+
+		synchronized void setMaximumWeight(final long maximumWeight) {
+			mMaximumWeight = maximumWeight;
+			trim();
+
+			if (mParts != null) {
+				for (Shadow part : mParts) {
+					part.setMaximumWeight(Math.max(maximumWeight / mParts.length, 1));
+				}
+			}
+		}
+
+		/** Returns the number of hits (including those of the parts) since the last call and starts counting again */
+		synchronized long takeHits() {
+			long hits = mHits.getAndSet(0);
+
+			if (mParts != null) {
+				for (Shadow part : mParts) {
+					hits += part.takeHits();
+				}
+			}
+
+			return hits;
+		}
+
+		/** Forgets the eldest keys until the total weight fits into the maximum (requires the monitor) */
+		private void trim() {
+			while (mWeight.get() > mMaximumWeight && !mOrder.isEmpty()) {
+				final Dropped eldest = mOrder.removeFirst();
+
+				// the key may have been found by a lookup or dropped again in the meantime, which has adjusted the weight already
+				if (mDropped.remove(eldest.mHash, eldest)) {
+					mWeight.addAndGet(-eldest.mWeight);
+				}
+			}
+		}
+
+		private static Integer hash(final Object key) {
+			return key == null ? 0 : key.hashCode();
+		}
+
+	}
+
+	/** A key that has been dropped from a cache, identified by its hash code */
+	private static final class Dropped {
+
+		private final Integer mHash;
+		private final int mWeight;
+
+		Dropped(final Integer hash, final int weight) {
+			mHash = hash;
+			mWeight = weight;
+		}
+
+	}
+
+}
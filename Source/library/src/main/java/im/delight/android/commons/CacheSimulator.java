@@ -0,0 +1,202 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Replays a trace that has been recorded by `CacheTrace.Recorder` against caches of different sizes and with different strategies
+ *
+ * This shows how the hit ratio of a cache would change with its size or with another strategy, without changing the cache in production
+ *
+ * Every read that misses is assumed to be followed by loading and inserting the value, so that caches of any size can be simulated with the same trace
+ *
+ * Recorded insertions thus only add keys that are still missing, e.g. keys that have been written in advance, while recorded updates overwrite the values
+ *
+ * The hit ratio is the share of reads that have found an entry
+ *
+ * Usage:
+ *
+ * ```java
+ * final CacheSimulator simulator = new CacheSimulator(traceFile);
+ * final int[] sizes = { 1000, 2000, 5000, 10000 };
+ * final double[] lru = simulator.simulate(CacheSimulator.lru(), sizes);
+ * final double[] arc = simulator.simulate(CacheSimulator.policy(EvictionPolicy.arc()), sizes);
+ * ```
+ */
+public final class CacheSimulator {
+
+	private final File mFile;
+
+	/**
+	 * Creates a new simulator for the given trace
+	 *
+	 * @param file the file that has been written by a `CacheTrace.Recorder`
+	 */
+	public CacheSimulator(final File file) {
+		mFile = file;
+	}
+
+	/** Creates the caches that are simulated */
+	public static interface Factory {
+
+		/**
+		 * Creates a new empty cache
+		 *
+		 * @param cacheSize the maximum number of elements to hold
+		 * @return the new cache
+		 */
+		public Cache<Integer, Object> create(int cacheSize);
+
+	}
+
+	/**
+	 * Returns a factory for instances of `Cache` with the given admission policy
+	 *
+	 * @param admission the admission policy, either `Cache.ADMISSION_ALL` or `Cache.ADMISSION_FREQUENCY`
+	 * @return the factory
+	 */
+	public static Factory cache(final int admission) {
+		return new Factory() {
+
+			@Override
+			public Cache<Integer, Object> create(final int cacheSize) {
+				return new Cache<Integer, Object>(cacheSize, admission);
+			}
+
+		};
+	}
+
+	/**
+	 * Returns a factory for instances of `LruCache`
+	 *
+	 * @return the factory
+	 */
+	public static Factory lru() {
+		return new Factory() {
+
+			@Override
+			public Cache<Integer, Object> create(final int cacheSize) {
+				return new LruCache<Integer, Object>(cacheSize);
+			}
+
+		};
+	}
+
+	/**
+	 * Returns a factory for instances of `Cache` with the given eviction policy
+	 *
+	 * @param policy the eviction policy
+	 * @return the factory
+	 */
+	public static Factory policy(final EvictionPolicy policy) {
+		return new Factory() {
+
+			@Override
+			public Cache<Integer, Object> create(final int cacheSize) {
+				return new Cache<Integer, Object>(cacheSize, policy);
+			}
+
+		};
+	}
+
+	/**
+	 * Replays the trace against one cache of each of the given sizes
+	 *
+	 * The trace is read only once, while all caches are simulated side by side
+	 *
+	 * If only a share of the keys has been recorded, each cache is reduced by the same factor
+	 *
+	 * @param factory the factory for the caches
+	 * @param cacheSizes the sizes of the caches in the recorded application
+	 * @return the hit ratio between `0` and `1` for each of the sizes, in the same order
+	 * @throws IOException if the trace cannot be read
+	 */
+	public double[] simulate(final Factory factory, final int... cacheSizes) throws IOException {
+		final CacheTrace trace = CacheTrace.open(mFile);
+
+		try {
+			final Cache<Integer, Object>[] caches = createCaches(factory, cacheSizes, trace.getSampleRate());
+			final long[] hits = new long[caches.length];
+			long reads = 0;
+
+			while (true) {
+				final int record;
+				try {
+					record = trace.next();
+				}
+				catch (EOFException e) {
+					break;
+				}
+
+				final Integer key = CacheTrace.keyOf(record);
+
+				final int type = CacheTrace.typeOf(record);
+
+				if (type == CacheTrace.READ) {
+					reads++;
+
+					for (int i = 0; i < caches.length; i++) {
+						if (caches[i].get(key) != null) {
+							hits[i]++;
+						}
+						else {
+							caches[i].put(key, Boolean.TRUE);
+						}
+					}
+				}
+				else {
+					for (Cache<Integer, Object> cache : caches) {
+						// the insertion that follows a miss has been simulated already
+						if (type == CacheTrace.UPDATE || cache.peek(key) == null) {
+							cache.put(key, Boolean.TRUE);
+						}
+					}
+				}
+			}
+
+			final double[] out = new double[caches.length];
+
+			for (int i = 0; i < caches.length; i++) {
+				out[i] = reads > 0 ? (double) hits[i] / reads : 0;
+			}
+
+			return out;
+		}
+		finally {
+			trace.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Cache<Integer, Object>[] createCaches(final Factory factory, final int[] cacheSizes, final double sampleRate) {
+		final Cache<Integer, Object>[] out = (Cache<Integer, Object>[]) new Cache[cacheSizes.length];
+
+		for (int i = 0; i < cacheSizes.length; i++) {
+			if (cacheSizes[i] < 1) {
+				throw new RuntimeException("cacheSizes must be positive");
+			}
+
+			out[i] = factory.create(Math.max((int) Math.round(cacheSizes[i] * sampleRate), 1));
+		}
+
+		return out;
+	}
+
+}
@@ -0,0 +1,326 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Entries of a `Cache` that have been written to a file and are restored from a read-only mapping of that file on demand
+ *
+ * Only the keys are decoded when the file is opened, while each value is decoded once it is taken
+ */
+final class CacheSnapshot<K, V> {
+
+	private static final int MAGIC = 0x43534e31;
+	private static final int VERSION = 1;
+	/** Size of the file header, consisting of the magic number, the version and the number of records */
+	private static final int HEADER_SIZE = 12;
+	/** Size of the record header, consisting of the key length and the value length */
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+	private final Cache.Codec<V> mValueCodec;
+	/** Offsets of the records that have not been taken yet, from the eldest to the most recent entry */
+	private final LinkedHashMap<K, Integer> mIndex;
+	/** The mapping of the file, which is released once all records have been taken */
+	private ByteBuffer mBuffer;
+	/** The number of records that have not been taken yet, which can be read without the monitor */
+	private volatile int mCount;
+
+	private CacheSnapshot(final ByteBuffer buffer, final LinkedHashMap<K, Integer> index, final Cache.Codec<V> valueCodec) {
+		mBuffer = buffer;
+		mIndex = index;
+		mValueCodec = valueCodec;
+		mCount = index.size();
+	}
+
+	/**
+	 * Maps the given file and reads the keys of its records
+	 *
+	 * @param file the file that has been written by `write(...)`
+	 * @param keyCodec the codec to convert keys from bytes
+	 * @param valueCodec the codec to convert values from bytes
+	 * @param maximumEntries the maximum number of entries to restore, where the eldest entries are skipped first
+	 * @return the snapshot, which is empty if the file does not exist
+	 * @throws IOException if the file cannot be read or is not a snapshot
+	 */
+	static <K, V> CacheSnapshot<K, V> open(final File file, final Cache.Codec<K> keyCodec, final Cache.Codec<V> valueCodec, final long maximumEntries) throws IOException {
+		final LinkedHashMap<K, Integer> index = new LinkedHashMap<K, Integer>();
+
+		if (!file.exists() || file.length() == 0) {
+			return new CacheSnapshot<K, V>(null, index, valueCodec);
+		}
+
+		final ByteBuffer buffer;
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+		// the mapping remains valid after the file has been closed
+		try {
+			buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+		}
+		finally {
+			randomAccessFile.close();
+		}
+
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("The file is not a snapshot: "+file);
+		}
+
+		final int count = buffer.getInt(8);
+		int position = HEADER_SIZE;
+
+		for (int i = 0; i < count; i++) {
+			if (position + RECORD_HEADER_SIZE > buffer.limit()) {
+				break;
+			}
+
+			final int keyLength = buffer.getInt(position);
+			final int valueLength = buffer.getInt(position + 4);
+
+			// ignore a truncated record and everything after it
+			if (keyLength < 0 || valueLength < 0 || (long) position + RECORD_HEADER_SIZE + keyLength + valueLength > buffer.limit()) {
+				break;
+			}
+
+			// only decode the keys of the most recent entries that fit into the cache
+			if (count - i <= maximumEntries) {
+				final K key = keyCodec.decode(read(buffer, position + RECORD_HEADER_SIZE, keyLength));
+
+				// a later record for the same key replaces the earlier one and takes its place in the order
+				index.remove(key);
+				index.put(key, position);
+			}
+
+			position += RECORD_HEADER_SIZE + keyLength + valueLength;
+		}
+
+		return new CacheSnapshot<K, V>(buffer, index, valueCodec);
+	}
+
+	/**
+	 * Returns the raw records of the entries of the given snapshot that have not been taken yet
+	 *
+	 * @param snapshot the snapshot or `null`
+	 * @return the records, which are empty if there is no snapshot
+	 */
+	static Records pendingRecords(final CacheSnapshot<?, ?> snapshot) {
+		final ArrayList<Integer> offsets = new ArrayList<Integer>();
+		ByteBuffer buffer = null;
+
+		if (snapshot != null) {
+			synchronized (snapshot) {
+				if (snapshot.mBuffer != null) {
+					offsets.addAll(snapshot.mIndex.values());
+					buffer = snapshot.mBuffer;
+				}
+			}
+		}
+
+		return new Records(buffer, offsets);
+	}
+
+	/**
+	 * Writes the given entries to the given file, replacing the file only once all entries have been written
+	 *
+	 * @param file the file to write to
+	 * @param entries the entries, from the eldest to the most recent entry
+	 * @param pending the restored entries that have not been taken yet and that are written as the eldest entries (see `pendingRecords(...)`)
+	 * @param keyCodec the codec to convert keys to bytes
+	 * @param valueCodec the codec to convert values to bytes
+	 * @throws IOException if the file cannot be written
+	 */
+	static <K, V> void write(final File file, final Map<K, V> entries, final Records pending, final Cache.Codec<K> keyCodec, final Cache.Codec<V> valueCodec) throws IOException {
+		final ArrayList<Integer> pendingOffsets = pending.mOffsets;
+		final ByteBuffer pendingBuffer = pending.mBuffer;
+
+		final File temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(pendingOffsets.size() + entries.size());
+
+			// the mapping is never modified, so the records can be copied without holding the monitor
+			for (Integer offset : pendingOffsets) {
+				final int length = RECORD_HEADER_SIZE + pendingBuffer.getInt(offset) + pendingBuffer.getInt(offset + 4);
+				out.write(read(pendingBuffer, offset, length));
+			}
+
+			for (Map.Entry<K, V> entry : entries.entrySet()) {
+				final byte[] keyBytes = keyCodec.encode(entry.getKey());
+				final byte[] valueBytes = valueCodec.encode(entry.getValue());
+
+				out.writeInt(keyBytes.length);
+				out.writeInt(valueBytes.length);
+				out.write(keyBytes);
+				out.write(valueBytes);
+			}
+		}
+		finally {
+			out.close();
+		}
+
+		if (!temporary.renameTo(file)) {
+			temporary.delete();
+
+			throw new IOException("Could not replace the file: "+file);
+		}
+	}
+
+	/**
+	 * Removes the entry for the given key and returns its value
+	 *
+	 * @param key the key to look up
+	 * @return the value or `null`
+	 */
+	V take(final K key) {
+		// skip the monitor once all entries have been taken, which is the common case after a while
+		if (mCount == 0) {
+			return null;
+		}
+
+		final byte[] valueBytes;
+
+		synchronized (this) {
+			final Integer offset = mIndex.remove(key);
+
+			if (offset == null) {
+				return null;
+			}
+
+			final int keyLength = mBuffer.getInt(offset);
+			final int valueLength = mBuffer.getInt(offset + 4);
+			valueBytes = read(mBuffer, offset + RECORD_HEADER_SIZE + keyLength, valueLength);
+
+			onRemoved();
+		}
+
+		// decode the value after releasing the monitor
+		return mValueCodec.decode(valueBytes);
+	}
+
+	/**
+	 * Removes the entry for the given key, e.g. because a newer value has been written
+	 *
+	 * @param key the key to remove
+	 */
+	void remove(final K key) {
+		if (mCount == 0) {
+			return;
+		}
+
+		synchronized (this) {
+			if (mIndex.remove(key) != null) {
+				onRemoved();
+			}
+		}
+	}
+
+	/**
+	 * Removes the entries for all of the given keys and returns their values
+	 *
+	 * @param keys the keys to look up
+	 * @param out the map that the values that have been found are added to
+	 */
+	void takeAll(final Iterable<K> keys, final Map<K, V> out) {
+		if (mCount == 0) {
+			return;
+		}
+
+		final LinkedHashMap<K, byte[]> found = new LinkedHashMap<K, byte[]>();
+
+		synchronized (this) {
+			final Iterator<K> iterator = keys.iterator();
+			while (mBuffer != null && iterator.hasNext()) {
+				final K key = iterator.next();
+				final Integer offset = mIndex.remove(key);
+
+				if (offset != null) {
+					final int keyLength = mBuffer.getInt(offset);
+					final int valueLength = mBuffer.getInt(offset + 4);
+					found.put(key, read(mBuffer, offset + RECORD_HEADER_SIZE + keyLength, valueLength));
+
+					onRemoved();
+				}
+			}
+		}
+
+		for (Map.Entry<K, byte[]> entry : found.entrySet()) {
+			out.put(entry.getKey(), mValueCodec.decode(entry.getValue()));
+		}
+	}
+
+	/** Removes all entries */
+	synchronized void clear() {
+		mIndex.clear();
+		onRemoved();
+	}
+
+	/**
+	 * Returns the number of entries that have not been taken yet
+	 *
+	 * @return the number of entries
+	 */
+	int size() {
+		return mCount;
+	}
+
+	/** Updates the number of entries and releases the mapping once it is no longer needed (requires the monitor) */
+	private void onRemoved() {
+		mCount = mIndex.size();
+
+		if (mCount == 0) {
+			mBuffer = null;
+		}
+	}
+
+	/** Raw records in the mapping of a snapshot file, which can be copied to a new file without decoding them */
+	static final class Records {
+
+		/** The mapping, which is never modified, or `null` if there are no records */
+		private final ByteBuffer mBuffer;
+		private final ArrayList<Integer> mOffsets;
+
+		private Records(final ByteBuffer buffer, final ArrayList<Integer> offsets) {
+			mBuffer = buffer;
+			mOffsets = offsets;
+		}
+
+	}
+
+	private static byte[] read(final ByteBuffer buffer, final int offset, final int length) {
+		final byte[] out = new byte[length];
+
+		final ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.get(out);
+
+		return out;
+	}
+
+}
@@ -0,0 +1,231 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics about the usage of a `Cache`, which are recorded once enabled through `Cache.recordStats()`
+ *
+ * All counters are striped across threads, so that recording does not make threads wait for each other
+ *
+ * The values are read without any synchronization and are thus only approximately consistent with each other
+ *
+ * This implementation is thread-safe
+ */
+public final class CacheStats {
+
+	/** The number of buckets in the histogram of lock wait times, where bucket `i` holds waits shorter than `2^i` nanoseconds */
+	private static final int HISTOGRAM_BUCKETS = 64;
+	private static final int MAX_STRIPES = 16;
+	/** Spacing between the slots of neighboring stripes to avoid false sharing of cache lines */
+	private static final int STRIPE_SHIFT = 3;
+	private final int mStripeMask;
+	private final AtomicLongArray mHits;
+	private final AtomicLongArray mMisses;
+	private final AtomicLongArray mLoads;
+	private final AtomicLongArray mManualRemovals;
+	private final AtomicLongArray mAutomaticRemovals;
+	private final AtomicLongArray mLockAcquisitions;
+	private final AtomicLongArray mTotalLockWait;
+	/** Histogram of lock wait times with one row of buckets per stripe */
+	private final AtomicLongArray mLockWaitHistogram;
+
+	CacheStats() {
+		int stripes = 1;
+		final int target = Math.min(Runtime.getRuntime().availableProcessors(), MAX_STRIPES);
+		while (stripes < target) {
+			stripes <<= 1;
+		}
+
+		mStripeMask = stripes - 1;
+		mHits = new AtomicLongArray(stripes << STRIPE_SHIFT);
+		mMisses = new AtomicLongArray(stripes << STRIPE_SHIFT);
+		mLoads = new AtomicLongArray(stripes << STRIPE_SHIFT);
+		mManualRemovals = new AtomicLongArray(stripes << STRIPE_SHIFT);
+		mAutomaticRemovals = new AtomicLongArray(stripes << STRIPE_SHIFT);
+		mLockAcquisitions = new AtomicLongArray(stripes << STRIPE_SHIFT);
+		mTotalLockWait = new AtomicLongArray(stripes << STRIPE_SHIFT);
+		mLockWaitHistogram = new AtomicLongArray(stripes * HISTOGRAM_BUCKETS);
+	}
+
+	/**
+	 * Returns the number of lookups that have found an entry
+	 *
+	 * @return the number of hits
+	 */
+	public long getHitCount() {
+		return sum(mHits);
+	}
+
+	/**
+	 * Returns the number of lookups that have not found an entry
+	 *
+	 * @return the number of misses
+	 */
+	public long getMissCount() {
+		return sum(mMisses);
+	}
+
+	/**
+	 * Returns the share of lookups that have found an entry
+	 *
+	 * @return the hit rate between `0.0` and `1.0`, which is `1.0` if there have not been any lookups yet
+	 */
+	public double getHitRate() {
+		final long hits = getHitCount();
+		final long requests = hits + getMissCount();
+
+		return requests == 0 ? 1.0 : (double) hits / requests;
+	}
+
+	/**
+	 * Returns the number of values that have been loaded on a miss, e.g. from the second level
+	 *
+	 * @return the number of loads
+	 */
+	public long getLoadCount() {
+		return sum(mLoads);
+	}
+
+	/**
+	 * Returns the number of entries that have been removed or overwritten manually
+	 *
+	 * @return the number of manual removals
+	 */
+	public long getManualRemovalCount() {
+		return sum(mManualRemovals);
+	}
+
+	/**
+	 * Returns the number of entries that have been removed automatically, i.e. evicted due to the size limit or expired
+	 *
+	 * @return the number of automatic removals
+	 */
+	public long getAutomaticRemovalCount() {
+		return sum(mAutomaticRemovals);
+	}
+
+	/**
+	 * Returns the average time that threads have waited to acquire the cache's lock
+	 *
+	 * @return the average wait time in nanoseconds
+	 */
+	public double getAverageLockWaitNanos() {
+		final long acquisitions = sum(mLockAcquisitions);
+
+		return acquisitions == 0 ? 0.0 : (double) sum(mTotalLockWait) / acquisitions;
+	}
+
+	/**
+	 * Returns the time that the given share of all acquisitions of the cache's lock have waited at most
+	 *
+	 * The result is rounded up to the next power of two
+	 *
+	 * @param percentile the percentile between `0.0` and `100.0`, e.g. `99.0`
+	 * @return the wait time in nanoseconds
+	 */
+	public long getLockWaitPercentileNanos(final double percentile) {
+		if (percentile < 0.0 || percentile > 100.0) {
+			throw new RuntimeException("percentile must be between 0 and 100");
+		}
+
+		final long[] buckets = new long[HISTOGRAM_BUCKETS];
+		long total = 0;
+
+		for (int stripe = 0; stripe <= mStripeMask; stripe++) {
+			for (int bucket = 0; bucket < HISTOGRAM_BUCKETS; bucket++) {
+				final long count = mLockWaitHistogram.get(stripe * HISTOGRAM_BUCKETS + bucket);
+				buckets[bucket] += count;
+				total += count;
+			}
+		}
+
+		if (total == 0) {
+			return 0;
+		}
+
+		final long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+
+		for (int bucket = 0; bucket < HISTOGRAM_BUCKETS; bucket++) {
+			seen += buckets[bucket];
+
+			if (seen >= rank && buckets[bucket] > 0) {
+				return bucket == 0 ? 0 : (1L << bucket) - 1;
+			}
+		}
+
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStats{hits=" + getHitCount() + ", misses=" + getMissCount() + ", loads=" + getLoadCount() + ", manualRemovals=" + getManualRemovalCount() + ", automaticRemovals=" + getAutomaticRemovalCount() + ", averageLockWaitNanos=" + getAverageLockWaitNanos() + "}";
+	}
+
+	void recordHit() {
+		increment(mHits, 1);
+	}
+
+	void recordMiss() {
+		increment(mMisses, 1);
+	}
+
+	void recordLoad() {
+		increment(mLoads, 1);
+	}
+
+	void recordRemoval(final boolean causedManually) {
+		increment(causedManually ? mManualRemovals : mAutomaticRemovals, 1);
+	}
+
+	void recordLockWait(final long nanos) {
+		final int stripe = stripeForCurrentThread();
+		final int bucket = nanos <= 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(nanos), HISTOGRAM_BUCKETS - 1);
+
+		mLockAcquisitions.getAndIncrement(stripe << STRIPE_SHIFT);
+
+		if (nanos > 0) {
+			mTotalLockWait.getAndAdd(stripe << STRIPE_SHIFT, nanos);
+		}
+
+		mLockWaitHistogram.getAndIncrement(stripe * HISTOGRAM_BUCKETS + bucket);
+	}
+
+	private void increment(final AtomicLongArray counter, final long delta) {
+		counter.getAndAdd(stripeForCurrentThread() << STRIPE_SHIFT, delta);
+	}
+
+	private long sum(final AtomicLongArray counter) {
+		long sum = 0;
+
+		for (int stripe = 0; stripe <= mStripeMask; stripe++) {
+			sum += counter.get(stripe << STRIPE_SHIFT);
+		}
+
+		return sum;
+	}
+
+	private int stripeForCurrentThread() {
+		// scramble the thread ID so that consecutive IDs are distributed evenly
+		final long id = Thread.currentThread().getId();
+
+		return ((int) (id * 0x9E3779B9L) >>> 16) & mStripeMask;
+	}
+
+}
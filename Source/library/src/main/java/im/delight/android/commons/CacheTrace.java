@@ -0,0 +1,275 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Trace of the keys that have been read and written in a `Cache`, which can be replayed by `CacheSimulator`
+ *
+ * Only a hash of each key is recorded, so that the trace neither contains the keys themselves nor depends on their type
+ *
+ * Each access takes four bytes in the file, holding the 30-bit hash of the key and the type of the access
+ *
+ * Writes are recorded either as insertions of new keys or as updates of existing keys, so that the simulated caches can tell whether a value has been loaded after a miss
+ *
+ * Optionally, only a fixed share of the keys is recorded, which are chosen by their hashes so that all accesses of a sampled key are recorded
+ */
+public final class CacheTrace {
+
+	private static final int MAGIC = 0x43545231;
+	private static final int VERSION = 1;
+	/** The sample rate is stored as the number of sampled hashes out of `2^SAMPLE_BITS` */
+	private static final int SAMPLE_BITS = 24;
+	private static final int SAMPLE_RANGE = 1 << SAMPLE_BITS;
+	/** The type of records of reads */
+	static final int READ = 0;
+	/** The type of records of writes that have added a new entry, e.g. after a miss */
+	static final int INSERT = 1;
+	/** The type of records of writes that have replaced an existing entry */
+	static final int UPDATE = 2;
+	private static final int TYPE_BITS = 2;
+	private static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+	private final DataInputStream mIn;
+	private final double mSampleRate;
+
+	private CacheTrace(final DataInputStream in, final double sampleRate) {
+		mIn = in;
+		mSampleRate = sampleRate;
+	}
+
+	/**
+	 * Opens the given trace for reading
+	 *
+	 * @param file the file that has been written by a `CacheTrace.Recorder`
+	 * @return the trace, which must be closed after use
+	 * @throws IOException if the file cannot be read or is not a trace
+	 */
+	static CacheTrace open(final File file) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("The file is not a trace: "+file);
+			}
+
+			return new CacheTrace(in, (double) in.readInt() / SAMPLE_RANGE);
+		}
+		catch (EOFException e) {
+			in.close();
+
+			throw new IOException("The file is not a trace: "+file);
+		}
+		catch (IOException e) {
+			in.close();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the share of the keys that have been recorded
+	 *
+	 * @return the sample rate between `0` (exclusive) and `1` (inclusive)
+	 */
+	double getSampleRate() {
+		return mSampleRate;
+	}
+
+	/**
+	 * Returns the next record, which can be decoded with `typeOf(...)` and `keyOf(...)`
+	 *
+	 * @return the record
+	 * @throws EOFException if there are no more records
+	 * @throws IOException if the file cannot be read
+	 */
+	int next() throws IOException {
+		return mIn.readInt();
+	}
+
+	void close() throws IOException {
+		mIn.close();
+	}
+
+	/** Returns the type of the given record, i.e. `READ`, `INSERT` or `UPDATE` */
+	static int typeOf(final int record) {
+		return record & TYPE_MASK;
+	}
+
+	/** Returns the hash of the key in the given record, which is never negative */
+	static int keyOf(final int record) {
+		return record >>> TYPE_BITS;
+	}
+
+	/** Spreads the bits of the key's hash code, so that the sampling and the simulated caches are not affected by patterns in the hash codes */
+	private static int hash(final Object key) {
+		if (key == null) {
+			return 0;
+		}
+
+		final int hash = key.hashCode() * 0x9e3779b9;
+
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Writes the accesses of one or more caches to a trace file (see `Cache.recordTrace(...)`)
+	 *
+	 * Recording costs a short synchronized write to a buffer for each access of a sampled key
+	 *
+	 * This implementation is thread-safe
+	 */
+	public static final class Recorder implements Closeable {
+
+		private final DataOutputStream mOut;
+		/** Keys whose hashes are below this threshold are recorded */
+		private final int mSampleThreshold;
+		/** The number of accesses that have been recorded (guarded by the monitor) */
+		private long mCount;
+		/** Whether the recorder has been closed, either explicitly or due to an error (guarded by the monitor) */
+		private boolean mClosed;
+		/** The first error that occurred while writing, which is thrown by `flush()` or `close()`, or `null` (guarded by the monitor) */
+		private IOException mError;
+
+		/**
+		 * Creates a new recorder that writes every access to the given file, replacing any previous content
+		 *
+		 * @param file the file to write to
+		 * @throws IOException if the file cannot be written
+		 */
+		public Recorder(final File file) throws IOException {
+			this(file, 1);
+		}
+
+		/**
+		 * Creates a new recorder that writes the accesses of the given share of the keys to the given file, replacing any previous content
+		 *
+		 * Sampling reduces both the overhead and the size of the trace, while the simulated caches are reduced by the same factor so that the hit ratios remain comparable
+		 *
+		 * @param file the file to write to
+		 * @param sampleRate the share of the keys to record, between `0` (exclusive) and `1` (inclusive)
+		 * @throws IOException if the file cannot be written
+		 */
+		public Recorder(final File file, final double sampleRate) throws IOException {
+			if (!(sampleRate > 0 && sampleRate <= 1)) {
+				throw new RuntimeException("sampleRate must be greater than 0 and not greater than 1");
+			}
+
+			mSampleThreshold = Math.max((int) Math.round(sampleRate * SAMPLE_RANGE), 1);
+			mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+			try {
+				mOut.writeInt(MAGIC);
+				mOut.writeInt(VERSION);
+				mOut.writeInt(mSampleThreshold);
+			}
+			catch (IOException e) {
+				mOut.close();
+
+				throw e;
+			}
+		}
+
+		void recordRead(final Object key) {
+			record(hash(key), READ);
+		}
+
+		void recordWrite(final Object key, final boolean inserted) {
+			record(hash(key), inserted ? INSERT : UPDATE);
+		}
+
+		private void record(final int hash, final int type) {
+			// sample by the upper bits of the hash, while the lower bits are stored
+			if ((hash >>> (32 - SAMPLE_BITS)) >= mSampleThreshold) {
+				return;
+			}
+
+			synchronized (this) {
+				if (mClosed) {
+					return;
+				}
+
+				try {
+					mOut.writeInt((hash << TYPE_BITS) | type);
+					mCount++;
+				}
+				catch (IOException e) {
+					// the access must not fail because of the trace, so recording stops and the error is reported later
+					mError = e;
+					mClosed = true;
+
+					try {
+						mOut.close();
+					}
+					catch (IOException ignored) { }
+				}
+			}
+		}
+
+		/**
+		 * Returns the number of accesses that have been recorded so far
+		 *
+		 * @return the number of records
+		 */
+		public synchronized long getRecordCount() {
+			return mCount;
+		}
+
+		/**
+		 * Writes all buffered records to the file
+		 *
+		 * @throws IOException if the file cannot be written or if an earlier write has failed
+		 */
+		public synchronized void flush() throws IOException {
+			if (mError != null) {
+				throw mError;
+			}
+
+			if (!mClosed) {
+				mOut.flush();
+			}
+		}
+
+		/**
+		 * Writes all buffered records to the file and stops recording
+		 *
+		 * @throws IOException if the file cannot be written or if an earlier write has failed
+		 */
+		@Override
+		public synchronized void close() throws IOException {
+			if (!mClosed) {
+				mClosed = true;
+				mOut.close();
+			}
+
+			if (mError != null) {
+				throw mError;
+			}
+		}
+
+	}
+
+}
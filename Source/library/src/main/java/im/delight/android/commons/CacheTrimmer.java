@@ -0,0 +1,257 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Registry of caches that are shrunk automatically when the system is low on memory
+ *
+ * The caches are trimmed in proportion to the level reported through `ComponentCallbacks2.onTrimMemory(...)` and restored to their original size once the system has not reported any memory pressure for a while
+ *
+ * On Android 4.0 (API level 14) and above, the notifications are received automatically, while on older versions you may call `trim(...)` yourself, e.g. from `Activity.onLowMemory()`
+ *
+ * Registered caches are referenced weakly, so registering a cache does not keep it from being garbage-collected
+ */
+public final class CacheTrimmer {
+
+	/** The time (in milliseconds) without any memory pressure after which the caches are restored */
+	private static final long RESTORE_DELAY = 60000;
+	/** The share of their original size (in percent) that the caches currently retain */
+	private static int sRetainedPercent = 100;
+	private static final ArrayList<Registration> REGISTRATIONS = new ArrayList<Registration>();
+	private static Handler sHandler;
+	/** Whether the notifications about memory pressure are received already */
+	private static boolean sCallbacksRegistered;
+	private static final Runnable RESTORE_RUNNABLE = new Runnable() {
+
+		@Override
+		public void run() {
+			restore();
+		}
+
+	};
+
+	/** This class may not be instantiated */
+	private CacheTrimmer() { }
+
+	/**
+	 * Registers the given cache so that it is shrunk when the system is low on memory
+	 *
+	 * @param context a context reference
+	 * @param cache the cache to register
+	 */
+	public static void register(final Context context, final Cache<?, ?> cache) {
+		register(context, cache, false);
+	}
+
+	/**
+	 * Registers the given cache so that it is shrunk when the system is low on memory
+	 *
+	 * If the values are to be softened, the cache holds its values only through soft references while the app is in the background and memory is low (see `Cache.setSoftValues(...)`)
+	 *
+	 * @param context a context reference
+	 * @param cache the cache to register
+	 * @param softenValues whether to soften the values when memory is low
+	 */
+	public static void register(final Context context, final Cache<?, ?> cache, final boolean softenValues) {
+		synchronized (CacheTrimmer.class) {
+			if (!sCallbacksRegistered) {
+				sCallbacksRegistered = true;
+				registerCallbacks(context.getApplicationContext());
+			}
+
+			unregisterLocked(cache);
+			REGISTRATIONS.add(new Registration(cache, cache.getMaximumWeight(), softenValues));
+
+			// caches that are registered while memory is low are trimmed right away
+			if (sRetainedPercent < 100) {
+				cache.setMaximumWeight(cache.getMaximumWeight() * sRetainedPercent / 100);
+			}
+		}
+	}
+
+	/**
+	 * Unregisters the given cache and restores its original size
+	 *
+	 * @param cache the cache to unregister
+	 */
+	public static void unregister(final Cache<?, ?> cache) {
+		synchronized (CacheTrimmer.class) {
+			unregisterLocked(cache);
+		}
+	}
+
+	/**
+	 * Shrinks all registered caches according to the given level of memory pressure
+	 *
+	 * The caches are restored automatically once the system has not reported any memory pressure for a while
+	 *
+	 * @param level the level as passed to `ComponentCallbacks2.onTrimMemory(...)`, e.g. `ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW`
+	 */
+	public static void trim(final int level) {
+		synchronized (CacheTrimmer.class) {
+			// the caches are only restored after a period without memory pressure, so a lower level never grows them again
+			sRetainedPercent = Math.min(sRetainedPercent, getRetainedPercent(level));
+
+			final boolean soften = level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND;
+
+			final Iterator<Registration> iterator = REGISTRATIONS.iterator();
+			while (iterator.hasNext()) {
+				final Registration registration = iterator.next();
+				final Cache<?, ?> cache = registration.mCache.get();
+
+				if (cache == null) {
+					iterator.remove();
+				}
+				else {
+					cache.setMaximumWeight(registration.mMaximumWeight * sRetainedPercent / 100);
+
+					if (soften && registration.mSoftenValues) {
+						cache.setSoftValues(true);
+					}
+				}
+			}
+
+			// the handler is created here as well, as this may be called before any cache has been registered, and caches registered later must be restored too
+			if (sHandler == null) {
+				sHandler = new Handler(Looper.getMainLooper());
+			}
+
+			sHandler.removeCallbacks(RESTORE_RUNNABLE);
+			sHandler.postDelayed(RESTORE_RUNNABLE, RESTORE_DELAY);
+		}
+	}
+
+	/** Restores all registered caches to their original size and holds their values strongly again */
+	public static void restore() {
+		synchronized (CacheTrimmer.class) {
+			sRetainedPercent = 100;
+
+			final Iterator<Registration> iterator = REGISTRATIONS.iterator();
+			while (iterator.hasNext()) {
+				final Registration registration = iterator.next();
+				final Cache<?, ?> cache = registration.mCache.get();
+
+				if (cache == null) {
+					iterator.remove();
+				}
+				else {
+					registration.restore(cache);
+				}
+			}
+		}
+	}
+
+	/** Returns the share of their original size (in percent) that caches should retain at the given level of memory pressure */
+	@SuppressLint("InlinedApi")
+	private static int getRetainedPercent(final int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+			// the process is among the first to be killed, so release everything
+			return 0;
+		}
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			return 25;
+		}
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			return 50;
+		}
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			return 25;
+		}
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			return 50;
+		}
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+			return 75;
+		}
+		else {
+			return 100;
+		}
+	}
+
+	private static void unregisterLocked(final Cache<?, ?> cache) {
+		final Iterator<Registration> iterator = REGISTRATIONS.iterator();
+		while (iterator.hasNext()) {
+			final Registration registration = iterator.next();
+			final Cache<?, ?> registered = registration.mCache.get();
+
+			if (registered == null) {
+				iterator.remove();
+			}
+			else if (registered == cache) {
+				registration.restore(cache);
+				iterator.remove();
+			}
+		}
+	}
+
+	@SuppressLint("NewApi")
+	private static void registerCallbacks(final Context applicationContext) {
+		if (Build.VERSION.SDK_INT >= 14) {
+			applicationContext.registerComponentCallbacks(new ComponentCallbacks2() {
+
+				@Override
+				public void onTrimMemory(final int level) {
+					trim(level);
+				}
+
+				@Override
+				public void onLowMemory() {
+					trim(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+				}
+
+				@Override
+				public void onConfigurationChanged(final Configuration newConfig) { }
+
+			});
+		}
+	}
+
+	/** Registered cache along with its original size */
+	private static class Registration {
+
+		private final WeakReference<Cache<?, ?>> mCache;
+		private final long mMaximumWeight;
+		private final boolean mSoftenValues;
+
+		public Registration(final Cache<?, ?> cache, final long maximumWeight, final boolean softenValues) {
+			mCache = new WeakReference<Cache<?, ?>>(cache);
+			mMaximumWeight = maximumWeight;
+			mSoftenValues = softenValues;
+		}
+
+		public void restore(final Cache<?, ?> cache) {
+			cache.setMaximumWeight(mMaximumWeight);
+
+			if (mSoftenValues) {
+				cache.setSoftValues(false);
+			}
+		}
+
+	}
+
+}
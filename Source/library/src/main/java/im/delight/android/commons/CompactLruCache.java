@@ -0,0 +1,403 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * LRU (least recently used) cache that can hold a fixed number of elements in memory
+ *
+ * If the cache is full and a new entry is added, the least recently used entry will be dropped
+ *
+ * The keys, values and links between the entries are stored in parallel arrays, so that entries do not need objects of their own and lookups and insertions do not allocate any memory once the cache has reached its full size
+ *
+ * Compared to `LruCache`, this saves memory and work for the garbage collector if there are many small entries, but all operations are serialized by a single lock
+ *
+ * This implementation is thread-safe
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class CompactLruCache<K, V> {
+
+	/** Marks the end of the list of entries and an empty slot in the hash table */
+	private static final int NONE = -1;
+	private static final int INITIAL_CAPACITY = 16;
+	/** Placeholder for the `null` key, so that the hash table can call `hashCode()` and `equals(...)` on all keys */
+	private static final Object NULL_KEY = new Object();
+	private final int mCacheSize;
+	/** The indices of the entries in the arrays below by the hashes of their keys, with linear probing */
+	private int[] mTable;
+	private int mTableMask;
+	private Object[] mKeys;
+	/** The hashes of the keys, so that they do not have to be computed again when entries are compared or moved */
+	private int[] mHashes;
+	private Object[] mValues;
+	/** The index of the previous (older) entry for each entry */
+	private int[] mPrev;
+	/** The index of the next (more recent) entry for each entry, or of the next unused index if the entry is unused */
+	private int[] mNext;
+	/** The index of the eldest entry */
+	private int mHead;
+	/** The index of the most recent entry */
+	private int mTail;
+	/** The first index that is not used by any entry, or `NONE` if the arrays are full */
+	private int mFree;
+	private int mSize;
+
+	/**
+	 * Creates a new instance with the given cache size
+	 *
+	 * @param cacheSize the maximum number of elements to hold
+	 */
+	public CompactLruCache(final int cacheSize) {
+		if (cacheSize < 1) {
+			throw new RuntimeException("cacheSize must be positive");
+		}
+
+		mCacheSize = cacheSize;
+		mHead = NONE;
+		mTail = NONE;
+
+		allocate(Math.min(cacheSize, INITIAL_CAPACITY));
+	}
+
+	/**
+	 * Inserts a new element and possibly overwrites any previous value with the same key
+	 *
+	 * @param key the key to save the value for
+	 * @param value the value to save
+	 * @return the previous value or `null`
+	 */
+	public synchronized V put(final K key, final V value) {
+		final Object mapKey = maskNull(key);
+		final int hash = hash(mapKey);
+		int slot = findSlot(mapKey, hash);
+
+		if (mTable[slot] != NONE) {
+			final int index = mTable[slot];
+			final V previous = valueAt(index);
+			mValues[index] = value;
+			moveToTail(index);
+
+			if (previous != null) {
+				onEntryRemoved(key, previous, true);
+			}
+
+			return previous;
+		}
+
+		if (mSize == mCacheSize) {
+			final int eldest = mHead;
+			final K eldestKey = keyAt(eldest);
+			final V eldestValue = valueAt(eldest);
+			removeAt(eldest);
+			onEntryRemoved(eldestKey, eldestValue, false);
+
+			// the slot for the new key may have moved due to the removal
+			slot = findSlot(mapKey, hash);
+		}
+		else if (mFree == NONE) {
+			grow();
+			slot = findSlot(mapKey, hash);
+		}
+
+		final int index = mFree;
+		mFree = mNext[index];
+		mKeys[index] = mapKey;
+		mHashes[index] = hash;
+		mValues[index] = value;
+		mTable[slot] = index;
+		linkLast(index);
+		mSize++;
+
+		return null;
+	}
+
+	/**
+	 * Returns the value for the given key
+	 *
+	 * @param key the key to look up
+	 * @return the value that was found for the key or `null`
+	 */
+	public synchronized V get(final K key) {
+		final Object mapKey = maskNull(key);
+		final int index = mTable[findSlot(mapKey, hash(mapKey))];
+
+		if (index == NONE) {
+			return null;
+		}
+
+		moveToTail(index);
+
+		return valueAt(index);
+	}
+
+	/**
+	 * Removes the entry with the specified key
+	 *
+	 * @param key the key to remove
+	 * @return the old value for the specified key
+	 */
+	public synchronized V remove(final K key) {
+		final Object mapKey = maskNull(key);
+		final int index = mTable[findSlot(mapKey, hash(mapKey))];
+
+		if (index == NONE) {
+			return null;
+		}
+
+		final V value = valueAt(index);
+		removeAt(index);
+		onEntryRemoved(key, value, true);
+
+		return value;
+	}
+
+	/**
+	 * Returns all keys that are currently in this cache
+	 *
+	 * The keys are copied and ordered from the eldest to the most recent entry
+	 *
+	 * @return a set containing the keys
+	 */
+	public synchronized Set<K> keys() {
+		final LinkedHashSet<K> out = new LinkedHashSet<K>(mSize * 4 / 3 + 1);
+
+		for (int index = mHead; index != NONE; index = mNext[index]) {
+			out.add(keyAt(index));
+		}
+
+		return out;
+	}
+
+	/**
+	 * Returns all values that are currently in this cache
+	 *
+	 * The values are copied and ordered from the eldest to the most recent entry
+	 *
+	 * @return a collection containing the values
+	 */
+	public synchronized Collection<V> values() {
+		final ArrayList<V> out = new ArrayList<V>(mSize);
+
+		for (int index = mHead; index != NONE; index = mNext[index]) {
+			out.add(valueAt(index));
+		}
+
+		return out;
+	}
+
+	/**
+	 * Returns the current size of this cache
+	 *
+	 * @return the number of elements contained in this cache
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * Override this method if you want to be informed whenever an entry is removed from the cache
+	 *
+	 * You may use this if you must manually release resources when an element is deleted
+	 *
+	 * The default implementation does nothing
+	 *
+	 * @param key the key that was removed
+	 * @param value the value that was removed
+	 * @param causedManually whether the removal was caused manually (through `put(...)` or `remove(...)`) or automatically
+	 */
+	@SuppressWarnings("unused")
+	public void onEntryRemoved(final K key, final V value, final boolean causedManually) { }
+
+	/** Returns the slot of the given key in the hash table, or the empty slot where the key would be inserted */
+	private int findSlot(final Object key, final int hash) {
+		int slot = hash & mTableMask;
+
+		while (mTable[slot] != NONE) {
+			final int index = mTable[slot];
+
+			// compare the hashes first so that `equals(...)` is only called for likely matches
+			if (mHashes[index] == hash && (mKeys[index] == key || key.equals(mKeys[index]))) {
+				break;
+			}
+
+			slot = (slot + 1) & mTableMask;
+		}
+
+		return slot;
+	}
+
+	/** Removes the entry at the given index from the hash table and from the list and releases the index */
+	private void removeAt(final int index) {
+		// find the slot by the index, which avoids comparing the keys
+		int gap = mHashes[index] & mTableMask;
+		while (mTable[gap] != index) {
+			gap = (gap + 1) & mTableMask;
+		}
+
+		// shift the following entries back so that no entry becomes unreachable from its ideal slot
+		int slot = (gap + 1) & mTableMask;
+		while (mTable[slot] != NONE) {
+			final int ideal = mHashes[mTable[slot]] & mTableMask;
+
+			if (((slot - ideal) & mTableMask) >= ((slot - gap) & mTableMask)) {
+				mTable[gap] = mTable[slot];
+				gap = slot;
+			}
+
+			slot = (slot + 1) & mTableMask;
+		}
+
+		mTable[gap] = NONE;
+
+		unlink(index);
+		mKeys[index] = null;
+		mValues[index] = null;
+		mNext[index] = mFree;
+		mFree = index;
+		mSize--;
+	}
+
+	private void linkLast(final int index) {
+		mPrev[index] = mTail;
+		mNext[index] = NONE;
+
+		if (mTail == NONE) {
+			mHead = index;
+		}
+		else {
+			mNext[mTail] = index;
+		}
+
+		mTail = index;
+	}
+
+	private void unlink(final int index) {
+		if (mPrev[index] == NONE) {
+			mHead = mNext[index];
+		}
+		else {
+			mNext[mPrev[index]] = mNext[index];
+		}
+
+		if (mNext[index] == NONE) {
+			mTail = mPrev[index];
+		}
+		else {
+			mPrev[mNext[index]] = mPrev[index];
+		}
+	}
+
+	private void moveToTail(final int index) {
+		if (index != mTail) {
+			unlink(index);
+			linkLast(index);
+		}
+	}
+
+	/** Creates arrays for the given number of entries and a hash table that is at most half full */
+	private void allocate(final int capacity) {
+		int tableLength = 2;
+		while (tableLength < capacity * 2L) {
+			tableLength <<= 1;
+		}
+
+		mTable = new int[tableLength];
+		mTableMask = tableLength - 1;
+		mKeys = new Object[capacity];
+		mHashes = new int[capacity];
+		mValues = new Object[capacity];
+		mPrev = new int[capacity];
+		mNext = new int[capacity];
+
+		for (int i = 0; i < tableLength; i++) {
+			mTable[i] = NONE;
+		}
+
+		// chain all indices into the list of unused indices
+		for (int i = 0; i < capacity; i++) {
+			mNext[i] = i + 1 < capacity ? i + 1 : NONE;
+		}
+
+		mFree = 0;
+	}
+
+	/** Doubles the number of entries that can be held (up to the cache size) and rebuilds the hash table */
+	private void grow() {
+		final Object[] keys = mKeys;
+		final int[] hashes = mHashes;
+		final Object[] values = mValues;
+		final int[] next = mNext;
+		final int head = mHead;
+		final int size = mSize;
+
+		allocate((int) Math.min(keys.length * 2L, mCacheSize));
+
+		// copy the entries in the order of the list so that they are compacted at the start of the arrays
+		mHead = NONE;
+		mTail = NONE;
+
+		int index = 0;
+		for (int old = head; old != NONE; old = next[old]) {
+			mKeys[index] = keys[old];
+			mHashes[index] = hashes[old];
+			mValues[index] = values[old];
+
+			// the keys are distinct, so the first empty slot can be taken without comparing them
+			int slot = hashes[old] & mTableMask;
+			while (mTable[slot] != NONE) {
+				slot = (slot + 1) & mTableMask;
+			}
+			mTable[slot] = index;
+
+			linkLast(index);
+			index++;
+		}
+
+		// release the indices that have been used by the copies
+		mFree = size < mKeys.length ? size : NONE;
+	}
+
+	@SuppressWarnings("unchecked")
+	private K keyAt(final int index) {
+		final Object key = mKeys[index];
+
+		return key == NULL_KEY ? null : (K) key;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V valueAt(final int index) {
+		return (V) mValues[index];
+	}
+
+	private static Object maskNull(final Object key) {
+		return key == null ? NULL_KEY : key;
+	}
+
+	/** Spreads the bits of the key's hash code, as the hash table only uses the lower bits */
+	private static int hash(final Object key) {
+		final int hash = key.hashCode() * 0x9e3779b9;
+
+		return hash ^ (hash >>> 16);
+	}
+
+}
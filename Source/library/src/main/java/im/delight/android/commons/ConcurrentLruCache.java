@@ -0,0 +1,602 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LRU (least recently used) cache that can hold a fixed number of elements in memory and that scales with concurrent access
+ *
+ * The keys are partitioned across a number of segments that are locked independently, so that threads working on different keys do not have to wait for each other
+ *
+ * Every segment evicts its own least recently used entry when it is full, so the global order of evictions is only approximately LRU
+ *
+ * The total number of elements never exceeds the cache size, but a single segment may be full while others still have space left
+ *
+ * This implementation is thread-safe
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class ConcurrentLruCache<K, V> extends Cache<K, V> {
+
+	private static final float MAP_LOAD_FACTOR = 0.75f;
+	private static final int MIN_SEGMENT_SIZE = 16;
+	private static final int MAX_SEGMENTS = 64;
+	private final Cache<K, V>[] mSegments;
+	private final int mSegmentMask;
+
+	/**
+	 * Creates a new instance with the given cache size
+	 *
+	 * The number of segments is chosen based on the number of available processors
+	 *
+	 * @param cacheSize the maximum number of elements to hold
+	 */
+	public ConcurrentLruCache(final int cacheSize) {
+		this(cacheSize, Runtime.getRuntime().availableProcessors() * 4);
+	}
+
+	/**
+	 * Creates a new instance with the given cache size and the given number of concurrently writing threads to expect
+	 *
+	 * @param cacheSize the maximum number of elements to hold
+	 * @param concurrencyLevel the estimated number of threads that access this cache concurrently
+	 */
+	public ConcurrentLruCache(final int cacheSize, final int concurrencyLevel) {
+		this(cacheSize, concurrencyLevel, ADMISSION_ALL);
+	}
+
+	/**
+	 * Creates a new instance with the given cache size, number of concurrently writing threads to expect and admission policy
+	 *
+	 * The admission policy is applied within each segment separately
+	 *
+	 * @param cacheSize the maximum number of elements to hold
+	 * @param concurrencyLevel the estimated number of threads that access this cache concurrently
+	 * @param admission the admission policy, either `Cache.ADMISSION_ALL` or `Cache.ADMISSION_FREQUENCY`
+	 */
+	public ConcurrentLruCache(final int cacheSize, final int concurrencyLevel, final int admission) {
+		this(cacheSize, concurrencyLevel, admission, null);
+	}
+
+	/**
+	 * Creates a new instance with the given cache size, number of concurrently writing threads to expect and eviction policy
+	 *
+	 * The eviction policy is applied within each segment separately
+	 *
+	 * @param cacheSize the maximum number of elements to hold
+	 * @param concurrencyLevel the estimated number of threads that access this cache concurrently
+	 * @param policy the policy that decides which entries are dropped, e.g. `EvictionPolicy.arc()`
+	 */
+	public ConcurrentLruCache(final int cacheSize, final int concurrencyLevel, final EvictionPolicy policy) {
+		this(cacheSize, concurrencyLevel, ADMISSION_ALL, policy);
+
+		if (policy == null) {
+			throw new RuntimeException("policy must not be null");
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private ConcurrentLruCache(final int cacheSize, final int concurrencyLevel, final int admission, final EvictionPolicy policy) {
+		// the segments hold all entries so that the storage inherited from the superclass remains empty and needs no read buffer
+		super(0, false);
+
+		if (cacheSize < 1) {
+			throw new RuntimeException("cacheSize must be positive");
+		}
+
+		if (concurrencyLevel < 1) {
+			throw new RuntimeException("concurrencyLevel must be positive");
+		}
+
+		// use a power of two so that the segment can be selected by masking the hash
+		int segmentCount = 1;
+		while (segmentCount < concurrencyLevel && segmentCount < MAX_SEGMENTS) {
+			segmentCount <<= 1;
+		}
+
+		// do not split small caches into segments that are too small to be useful
+		while (segmentCount > 1 && cacheSize / segmentCount < MIN_SEGMENT_SIZE) {
+			segmentCount >>= 1;
+		}
+
+		mSegments = (Cache<K, V>[]) new Cache[segmentCount];
+		mSegmentMask = segmentCount - 1;
+
+		// distribute the capacity so that the segment sizes add up to the cache size exactly
+		final int baseSize = cacheSize / segmentCount;
+		final int remainder = cacheSize % segmentCount;
+
+		for (int i = 0; i < segmentCount; i++) {
+			mSegments[i] = new Segment(i < remainder ? baseSize + 1 : baseSize, admission, policy);
+		}
+	}
+
+	@Override
+	public V put(final K key, final V value) {
+		return segmentFor(key).put(key, value);
+	}
+
+	@Override
+	public V put(final K key, final V value, final long duration, final TimeUnit unit) {
+		return segmentFor(key).put(key, value, duration, unit);
+	}
+
+	@Override
+	public V putTagged(final K key, final V value, final Object... tags) {
+		return segmentFor(key).putTagged(key, value, tags);
+	}
+
+	@Override
+	public Cache<K, V> expireAfterWrite(final long duration, final TimeUnit unit) {
+		for (Cache<K, V> segment : mSegments) {
+			segment.expireAfterWrite(duration, unit);
+		}
+
+		return this;
+	}
+
+	@Override
+	public Cache<K, V> expireAfterAccess(final long duration, final TimeUnit unit) {
+		for (Cache<K, V> segment : mSegments) {
+			segment.expireAfterAccess(duration, unit);
+		}
+
+		return this;
+	}
+
+	@Override
+	public Cache<K, V> refreshAfterWrite(final long duration, final TimeUnit unit, final Loader<? super K, ? extends V> loader, final Executor executor) {
+		for (Cache<K, V> segment : mSegments) {
+			segment.refreshAfterWrite(duration, unit, loader, executor);
+		}
+
+		return this;
+	}
+
+	@Override
+	public Cache<K, V> spillTo(final DiskCache<K, V> diskCache) {
+		for (Cache<K, V> segment : mSegments) {
+			segment.spillTo(diskCache);
+		}
+
+		return this;
+	}
+
+	@Override
+	public long getMaximumWeight() {
+		long maximumWeight = 0;
+
+		for (Cache<K, V> segment : mSegments) {
+			maximumWeight += segment.getMaximumWeight();
+		}
+
+		return maximumWeight;
+	}
+
+	/**
+	 * Changes the maximum number of elements, e.g. to release memory while the system is low on memory
+	 *
+	 * The new size is distributed across the segments evenly, and segments that hold more than their new share drop entries right away
+	 *
+	 * @param maximumWeight the new maximum number of elements
+	 */
+	@Override
+	public void setMaximumWeight(final long maximumWeight) {
+		if (maximumWeight < 0) {
+			throw new RuntimeException("maximumWeight must not be negative");
+		}
+
+		final long baseSize = maximumWeight / mSegments.length;
+		final long remainder = maximumWeight % mSegments.length;
+
+		for (int i = 0; i < mSegments.length; i++) {
+			mSegments[i].setMaximumWeight(i < remainder ? baseSize + 1 : baseSize);
+		}
+	}
+
+	@Override
+	public void setSoftValues(final boolean softValues) {
+		for (Cache<K, V> segment : mSegments) {
+			segment.setSoftValues(softValues);
+		}
+	}
+
+	@Override
+	public Cache<K, V> deferRemovalNotifications(final Executor executor) {
+		for (Cache<K, V> segment : mSegments) {
+			segment.deferRemovalNotifications(executor);
+		}
+
+		return super.deferRemovalNotifications(executor);
+	}
+
+	/**
+	 * Starts recording statistics about hits, misses, loads and removals as well as the time spent waiting for the lock
+	 *
+	 * All segments record into the same statistics, while the lock wait times are measured per segment
+	 *
+	 * @return this instance for chaining
+	 */
+	@Override
+	public Cache<K, V> recordStats() {
+		final CacheStats stats = new CacheStats();
+
+		for (Cache<K, V> segment : mSegments) {
+			segment.recordStats(stats);
+		}
+
+		return recordStats(stats);
+	}
+
+	/**
+	 * Starts recording the keys of all reads and writes to the given recorder, so that they can be replayed by `CacheSimulator` later
+	 *
+	 * All segments record to the same recorder
+	 *
+	 * @param recorder the recorder or `null` to stop recording
+	 * @return this instance for chaining
+	 */
+	@Override
+	public Cache<K, V> recordTrace(final CacheTrace.Recorder recorder) {
+		for (Cache<K, V> segment : mSegments) {
+			segment.recordTrace(recorder);
+		}
+
+		return super.recordTrace(recorder);
+	}
+
+	/**
+	 * Starts counting the reads and writes of each key in order to find the keys that are used most often
+	 *
+	 * All segments count into the same tracker, which records the uses without blocking, so that the segments do not wait for each other
+	 *
+	 * @param capacity the maximum number of keys to track
+	 * @return this instance for chaining
+	 */
+	@Override
+	public Cache<K, V> trackHotKeys(final int capacity) {
+		final HotKeys<K> hotKeys = new HotKeys<K>(capacity);
+
+		for (Cache<K, V> segment : mSegments) {
+			segment.trackHotKeys(hotKeys);
+		}
+
+		return trackHotKeys(hotKeys);
+	}
+
+	/** Gives each segment a part of the given shadow, so that the segments do not contend for a single shadow */
+	@Override
+	void setShadow(final CacheBudget.Shadow shadow) {
+		final CacheBudget.Shadow[] parts = shadow != null ? shadow.split(mSegments.length) : null;
+
+		for (int i = 0; i < mSegments.length; i++) {
+			mSegments[i].setShadow(parts != null ? parts[i] : null);
+		}
+
+		super.setShadow(shadow);
+	}
+
+	@Override
+	public void cleanUp() {
+		for (Cache<K, V> segment : mSegments) {
+			segment.cleanUp();
+		}
+	}
+
+	@Override
+	public V get(final K key) {
+		return segmentFor(key).get(key);
+	}
+
+	@Override
+	public V get(final K key, final Loader<? super K, ? extends V> loader) {
+		return segmentFor(key).get(key, loader);
+	}
+
+	@Override
+	V peek(final K key) {
+		return segmentFor(key).peek(key);
+	}
+
+	@Override
+	public V remove(final K key) {
+		return segmentFor(key).remove(key);
+	}
+
+	/**
+	 * Returns the values for all of the given keys that are in this cache
+	 *
+	 * The keys are grouped by segment, so that the lock of each segment is acquired only once for the whole batch
+	 *
+	 * @param keys the keys to look up
+	 * @return a map of the keys that have been found to their values
+	 */
+	@Override
+	public Map<K, V> getAll(final Collection<? extends K> keys) {
+		final LinkedHashMap<K, V> out = new LinkedHashMap<K, V>((int) (keys.size() / MAP_LOAD_FACTOR) + 1);
+		final ArrayList<K>[] batches = partition(keys);
+
+		for (int i = 0; i < batches.length; i++) {
+			if (batches[i] != null) {
+				out.putAll(mSegments[i].getAll(batches[i]));
+			}
+		}
+
+		return out;
+	}
+
+	/**
+	 * Inserts all of the given elements and possibly overwrites any previous values with the same keys
+	 *
+	 * The elements are grouped by segment, so that the lock of each segment is acquired only once for the whole batch
+	 *
+	 * @param entries the keys and values to save
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public void putAll(final Map<? extends K, ? extends V> entries) {
+		final LinkedHashMap<K, V>[] batches = (LinkedHashMap<K, V>[]) new LinkedHashMap[mSegments.length];
+
+		for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+			final int index = segmentIndexFor(entry.getKey());
+
+			if (batches[index] == null) {
+				batches[index] = new LinkedHashMap<K, V>();
+			}
+
+			batches[index].put(entry.getKey(), entry.getValue());
+		}
+
+		for (int i = 0; i < batches.length; i++) {
+			if (batches[i] != null) {
+				mSegments[i].putAll(batches[i]);
+			}
+		}
+	}
+
+	/**
+	 * Removes the entries with all of the given keys
+	 *
+	 * The keys are grouped by segment, so that the lock of each segment is acquired only once for the whole batch
+	 *
+	 * @param keys the keys to remove
+	 */
+	@Override
+	public void invalidateAll(final Collection<? extends K> keys) {
+		final ArrayList<K>[] batches = partition(keys);
+
+		for (int i = 0; i < batches.length; i++) {
+			if (batches[i] != null) {
+				mSegments[i].invalidateAll(batches[i]);
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries that carry the given tag (see `putTagged(...)`)
+	 *
+	 * Each segment keeps its own index of the tags, so the lock of each segment is acquired once
+	 *
+	 * @param tag the tag to look for
+	 * @return the number of entries that have been removed
+	 */
+	@Override
+	public int invalidateTag(final Object tag) {
+		int removed = 0;
+
+		for (Cache<K, V> segment : mSegments) {
+			removed += segment.invalidateTag(tag);
+		}
+
+		return removed;
+	}
+
+	@Override
+	public void invalidateAll() {
+		for (Cache<K, V> segment : mSegments) {
+			segment.invalidateAll();
+		}
+	}
+
+	/**
+	 * Returns all values that are currently in this cache
+	 *
+	 * The segments are copied one after another, so the result is not an atomic snapshot of the whole cache
+	 *
+	 * @return a collection containing the values
+	 */
+	@Override
+	public Collection<V> values() {
+		final ArrayList<V> out = new ArrayList<V>();
+
+		for (Cache<K, V> segment : mSegments) {
+			out.addAll(segment.values());
+		}
+
+		return out;
+	}
+
+	/**
+	 * Returns all keys that are currently in this cache
+	 *
+	 * The segments are copied one after another, so the result is not an atomic snapshot of the whole cache
+	 *
+	 * @return a set containing the keys
+	 */
+	@Override
+	public Set<K> keys() {
+		final HashSet<K> out = new HashSet<K>();
+
+		for (Cache<K, V> segment : mSegments) {
+			out.addAll(segment.keys());
+		}
+
+		return out;
+	}
+
+	@Override
+	void setRestored(final CacheSnapshot<K, V> restored) {
+		// the segments share the restored entries, as each segment only requests the keys that belong to it
+		for (Cache<K, V> segment : mSegments) {
+			segment.setRestored(restored);
+		}
+
+		super.setRestored(restored);
+	}
+
+	/**
+	 * Returns an immutable copy of all entries that are currently in this cache
+	 *
+	 * The segments are copied one after another, so the result is not an atomic snapshot of the whole cache
+	 *
+	 * @return an unmodifiable map containing the entries
+	 */
+	@Override
+	public Map<K, V> snapshot() {
+		final LinkedHashMap<K, V> out = new LinkedHashMap<K, V>();
+
+		for (Cache<K, V> segment : mSegments) {
+			out.putAll(segment.snapshot());
+		}
+
+		return java.util.Collections.unmodifiableMap(out);
+	}
+
+	@Override
+	public Iterator<Map.Entry<K, V>> iterator() {
+		return new Iterator<Map.Entry<K, V>>() {
+
+			private int mSegment;
+			private Iterator<Map.Entry<K, V>> mCurrent = mSegments[0].iterator();
+			private Iterator<Map.Entry<K, V>> mLast;
+
+			@Override
+			public boolean hasNext() {
+				while (!mCurrent.hasNext() && mSegment < mSegments.length - 1) {
+					mCurrent = mSegments[++mSegment].iterator();
+				}
+
+				return mCurrent.hasNext();
+			}
+
+			@Override
+			public Map.Entry<K, V> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+
+				mLast = mCurrent;
+
+				return mCurrent.next();
+			}
+
+			@Override
+			public void remove() {
+				if (mLast == null) {
+					throw new IllegalStateException();
+				}
+
+				mLast.remove();
+				mLast = null;
+			}
+
+		};
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+
+		for (Cache<K, V> segment : mSegments) {
+			size += segment.size();
+		}
+
+		return size;
+	}
+
+	@Override
+	public long weight() {
+		long weight = 0;
+
+		for (Cache<K, V> segment : mSegments) {
+			weight += segment.weight();
+		}
+
+		return weight;
+	}
+
+	private Cache<K, V> segmentFor(final K key) {
+		return mSegments[segmentIndexFor(key)];
+	}
+
+	private int segmentIndexFor(final K key) {
+		if (key == null) {
+			return 0;
+		}
+
+		// spread the higher bits of the hash so that weak hash functions are still distributed across all segments
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		hash ^= (hash >>> 8);
+
+		return hash & mSegmentMask;
+	}
+
+	/** Groups the given keys by the index of their segments, where segments without any keys have no list */
+	@SuppressWarnings("unchecked")
+	private ArrayList<K>[] partition(final Collection<? extends K> keys) {
+		final ArrayList<K>[] batches = (ArrayList<K>[]) new ArrayList[mSegments.length];
+
+		for (K key : keys) {
+			final int index = segmentIndexFor(key);
+
+			if (batches[index] == null) {
+				batches[index] = new ArrayList<K>();
+			}
+
+			batches[index].add(key);
+		}
+
+		return batches;
+	}
+
+	/** Single partition of the cache that is locked independently and forwards its removals to the enclosing cache */
+	private final class Segment extends Cache<K, V> {
+
+		public Segment(final int cacheSize, final int admission, final EvictionPolicy policy) {
+			super(cacheSize, null, true, admission, policy);
+		}
+
+		@Override
+		public void onEntryRemoved(final K key, final V value, final boolean causedManually) {
+			ConcurrentLruCache.this.onEntryRemoved(key, value, causedManually);
+		}
+
+	}
+
+}
@@ -0,0 +1,458 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache that stores its entries on disk in an append-only journal which is mapped into memory
+ *
+ * Only an index of the keys is held on the heap, while the values are encoded with a `Cache.Codec` and read back on demand
+ *
+ * Overwritten and removed entries leave garbage in the journal, which is compacted in the background once it takes up half of the journal
+ *
+ * If the journal is full even after compaction, the oldest entries are dropped
+ *
+ * The journal survives restarts of the process, so that the entries can be read again later
+ *
+ * This can be used as a second level below a `Cache` (see `Cache.spillTo(...)`), but also on its own
+ *
+ * This implementation is thread-safe
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class DiskCache<K, V> {
+
+	private static final int MAGIC = 0x44434a31;
+	private static final int VERSION = 1;
+	/** Size of the file header, consisting of the magic number and the version */
+	private static final int HEADER_SIZE = 8;
+	/** Size of the record header, consisting of the marker, the key length and the value length */
+	private static final int RECORD_HEADER_SIZE = 9;
+	/** Marks a complete record, written after the rest of the record so that partial records are ignored */
+	private static final byte RECORD_MARKER = 0x52;
+	/** Value length that marks the removal of a key */
+	private static final int TOMBSTONE = -1;
+	private static final String COMPACTION_SUFFIX = ".compact";
+	private final File mFile;
+	private final int mCapacity;
+	private final Cache.Codec<K> mKeyCodec;
+	private final Cache.Codec<V> mValueCodec;
+	/** Offsets of the current records for all keys, from the oldest to the newest record */
+	private final LinkedHashMap<K, Integer> mIndex;
+	private RandomAccessFile mRandomAccessFile;
+	private MappedByteBuffer mBuffer;
+	/** The offset at which the next record will be written */
+	private int mPosition;
+	/** The number of bytes in the journal that belong to overwritten or removed records */
+	private int mGarbage;
+	private boolean mCompactionScheduled;
+
+	/**
+	 * Opens the journal in the given file or creates a new journal if the file does not exist
+	 *
+	 * @param file the file to store the journal in
+	 * @param maximumSize the maximum size of the journal in bytes
+	 * @param keyCodec the codec to convert keys to bytes and back
+	 * @param valueCodec the codec to convert values to bytes and back
+	 * @throws IOException if the file cannot be opened
+	 */
+	public DiskCache(final File file, final int maximumSize, final Cache.Codec<K> keyCodec, final Cache.Codec<V> valueCodec) throws IOException {
+		if (file == null) {
+			throw new RuntimeException("file must not be null");
+		}
+
+		if (maximumSize <= HEADER_SIZE + RECORD_HEADER_SIZE) {
+			throw new RuntimeException("maximumSize is too small");
+		}
+
+		if (keyCodec == null || valueCodec == null) {
+			throw new RuntimeException("codecs must not be null");
+		}
+
+		mFile = file;
+		mCapacity = maximumSize;
+		mKeyCodec = keyCodec;
+		mValueCodec = valueCodec;
+		mIndex = new LinkedHashMap<K, Integer>();
+
+		open();
+	}
+
+	/**
+	 * Stores the given entry and replaces any previous value with the same key
+	 *
+	 * @param key the key to save the value for
+	 * @param value the value to save
+	 * @return whether the entry has been stored, which fails if the entry is larger than the journal
+	 */
+	public boolean put(final K key, final V value) {
+		// encode the entry before acquiring the lock
+		final byte[] keyBytes = mKeyCodec.encode(key);
+		final byte[] valueBytes = mValueCodec.encode(value);
+
+		if (RECORD_HEADER_SIZE + keyBytes.length + valueBytes.length > mCapacity - HEADER_SIZE) {
+			return false;
+		}
+
+		synchronized (this) {
+			final Integer previous = mIndex.remove(key);
+
+			if (previous != null) {
+				mGarbage += recordSizeAt(previous);
+			}
+
+			final int offset = append(keyBytes, valueBytes);
+			mIndex.put(key, offset);
+			scheduleCompactionIfNeeded();
+
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the value for the given key
+	 *
+	 * @param key the key to look up
+	 * @return the value that was found for the key or `null`
+	 */
+	public V get(final K key) {
+		final byte[] valueBytes;
+
+		synchronized (this) {
+			final Integer offset = mIndex.get(key);
+
+			if (offset == null) {
+				return null;
+			}
+
+			valueBytes = readValueAt(offset);
+		}
+
+		// decode the value after releasing the lock
+		return mValueCodec.decode(valueBytes);
+	}
+
+	/**
+	 * Removes the entry with the specified key
+	 *
+	 * @param key the key to remove
+	 * @return the old value for the specified key or `null`
+	 */
+	public V remove(final K key) {
+		final byte[] valueBytes;
+
+		synchronized (this) {
+			final Integer offset = mIndex.get(key);
+
+			if (offset == null) {
+				return null;
+			}
+
+			valueBytes = readValueAt(offset);
+
+			// record the removal so that the entry is not restored when the journal is opened again
+			final int tombstone = append(mKeyCodec.encode(key), null);
+
+			// the record may have been moved if appending the tombstone required a compaction
+			final Integer current = mIndex.remove(key);
+
+			if (current != null) {
+				mGarbage += recordSizeAt(current);
+			}
+
+			mGarbage += recordSizeAt(tombstone);
+			scheduleCompactionIfNeeded();
+		}
+
+		return mValueCodec.decode(valueBytes);
+	}
+
+	/**
+	 * Returns whether there is an entry for the given key
+	 *
+	 * @param key the key to look up
+	 * @return whether an entry exists
+	 */
+	public synchronized boolean contains(final K key) {
+		return mIndex.containsKey(key);
+	}
+
+	/**
+	 * Returns the number of entries
+	 *
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return mIndex.size();
+	}
+
+	/**
+	 * Returns the number of bytes that the journal currently uses
+	 *
+	 * @return the number of bytes in use, including garbage that has not been compacted yet
+	 */
+	public synchronized int sizeInBytes() {
+		return mPosition;
+	}
+
+	/** Removes all entries */
+	public synchronized void clear() {
+		mIndex.clear();
+		mGarbage = 0;
+		mPosition = HEADER_SIZE;
+		// invalidate the first record so that the journal is empty when it is opened again
+		mBuffer.put(HEADER_SIZE, (byte) 0);
+	}
+
+	/** Rewrites the journal so that it contains the current records only */
+	public synchronized void compact() {
+		compact(0);
+	}
+
+	/**
+	 * Writes all changes to the storage device and releases the file
+	 *
+	 * The instance must not be used anymore afterwards
+	 */
+	public synchronized void close() {
+		mBuffer.force();
+
+		try {
+			mRandomAccessFile.close();
+		}
+		catch (IOException e) { }
+	}
+
+	private void open() throws IOException {
+		mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+		mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+		mIndex.clear();
+		mGarbage = 0;
+
+		// start with a new journal if the file is empty, from another version or otherwise unknown
+		if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+			mBuffer.putInt(0, MAGIC);
+			mBuffer.putInt(4, VERSION);
+			mBuffer.put(HEADER_SIZE, (byte) 0);
+			mPosition = HEADER_SIZE;
+
+			return;
+		}
+
+		// restore the index by replaying all complete records
+		int position = HEADER_SIZE;
+
+		while (position + RECORD_HEADER_SIZE <= mCapacity && mBuffer.get(position) == RECORD_MARKER) {
+			final int keyLength = mBuffer.getInt(position + 1);
+			final int valueLength = mBuffer.getInt(position + 5);
+			final int available = mCapacity - position - RECORD_HEADER_SIZE;
+
+			// the lengths are checked one by one against the remaining space, as their sum may overflow if the record is damaged
+			if (keyLength < 0 || valueLength < TOMBSTONE || keyLength > available || Math.max(valueLength, 0) > available - keyLength) {
+				break;
+			}
+
+			final int recordSize = RECORD_HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+
+			final byte[] keyBytes = new byte[keyLength];
+			mBuffer.position(position + RECORD_HEADER_SIZE);
+			mBuffer.get(keyBytes);
+			final K key = mKeyCodec.decode(keyBytes);
+
+			final Integer previous = mIndex.remove(key);
+
+			if (previous != null) {
+				mGarbage += recordSizeAt(previous);
+			}
+
+			if (valueLength == TOMBSTONE) {
+				mGarbage += recordSize;
+			}
+			else {
+				mIndex.put(key, position);
+			}
+
+			position += recordSize;
+		}
+
+		mPosition = position;
+	}
+
+	/** Appends a record with the given key and value (or a tombstone if the value is `null`) and returns its offset */
+	private int append(final byte[] keyBytes, final byte[] valueBytes) {
+		final int recordSize = RECORD_HEADER_SIZE + keyBytes.length + (valueBytes == null ? 0 : valueBytes.length);
+
+		if (mPosition + recordSize > mCapacity) {
+			compact(recordSize);
+		}
+
+		final int offset = mPosition;
+		mBuffer.position(offset + 1);
+		mBuffer.putInt(keyBytes.length);
+		mBuffer.putInt(valueBytes == null ? TOMBSTONE : valueBytes.length);
+		mBuffer.put(keyBytes);
+
+		if (valueBytes != null) {
+			mBuffer.put(valueBytes);
+		}
+
+		// invalidate the slot after the record before marking the record itself as complete
+		if (offset + recordSize < mCapacity) {
+			mBuffer.put(offset + recordSize, (byte) 0);
+		}
+
+		mBuffer.put(offset, RECORD_MARKER);
+		mPosition = offset + recordSize;
+
+		return offset;
+	}
+
+	/**
+	 * Copies the current records to a new journal, dropping the oldest records if necessary to free the given number of bytes
+	 *
+	 * If the compaction fails, all entries are dropped
+	 */
+	private void compact(final int requiredBytes) {
+		final int usableBytes = mCapacity - HEADER_SIZE;
+		final int liveBytes = mPosition - HEADER_SIZE - mGarbage;
+		final int budget;
+
+		// if the journal is compacted because it is full, leave a quarter of it free so that it is not compacted again on every write
+		if (requiredBytes > 0 && liveBytes + requiredBytes > usableBytes * 3 / 4) {
+			budget = usableBytes * 3 / 4 - requiredBytes;
+		}
+		else {
+			budget = liveBytes;
+		}
+		final File compactedFile = new File(mFile.getPath() + COMPACTION_SUFFIX);
+		RandomAccessFile compactedRandomAccessFile = null;
+
+		try {
+			compactedRandomAccessFile = new RandomAccessFile(compactedFile, "rw");
+			final MappedByteBuffer compacted = compactedRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+			compacted.putInt(0, MAGIC);
+			compacted.putInt(4, VERSION);
+
+			// drop the oldest records until the remaining ones fit into the budget
+			int dropBytes = Math.max(liveBytes - budget, 0);
+			int position = HEADER_SIZE;
+			final Iterator<Map.Entry<K, Integer>> iterator = mIndex.entrySet().iterator();
+
+			while (iterator.hasNext()) {
+				final Map.Entry<K, Integer> entry = iterator.next();
+				final int offset = entry.getValue();
+				final int recordSize = recordSizeAt(offset);
+
+				if (dropBytes > 0) {
+					dropBytes -= recordSize;
+					iterator.remove();
+
+					continue;
+				}
+
+				final byte[] record = new byte[recordSize];
+				mBuffer.position(offset);
+				mBuffer.get(record);
+				compacted.position(position);
+				compacted.put(record);
+				entry.setValue(position);
+				position += recordSize;
+			}
+
+			if (position < mCapacity) {
+				compacted.put(position, (byte) 0);
+			}
+
+			compacted.force();
+			mRandomAccessFile.close();
+
+			if (!compactedFile.renameTo(mFile)) {
+				throw new IOException("Could not replace journal");
+			}
+
+			mRandomAccessFile = compactedRandomAccessFile;
+			mBuffer = compacted;
+			mPosition = position;
+			mGarbage = 0;
+		}
+		catch (IOException e) {
+			if (compactedRandomAccessFile != null) {
+				try {
+					compactedRandomAccessFile.close();
+				}
+				catch (IOException ignored) { }
+			}
+
+			compactedFile.delete();
+
+			// the old journal may still be open if the compaction failed before it was replaced (closing it again has no effect)
+			try {
+				mRandomAccessFile.close();
+			}
+			catch (IOException ignored) { }
+
+			try {
+				mFile.delete();
+				open();
+			}
+			catch (IOException ignored) {
+				throw new RuntimeException("Could not recover the journal", e);
+			}
+		}
+	}
+
+	private void scheduleCompactionIfNeeded() {
+		if (!mCompactionScheduled && mGarbage > (mCapacity - HEADER_SIZE) / 2) {
+			mCompactionScheduled = true;
+
+			new Thread() {
+
+				@Override
+				public void run() {
+					synchronized (DiskCache.this) {
+						mCompactionScheduled = false;
+						compact(0);
+					}
+				}
+
+			}.start();
+		}
+	}
+
+	private int recordSizeAt(final int offset) {
+		return RECORD_HEADER_SIZE + mBuffer.getInt(offset + 1) + Math.max(mBuffer.getInt(offset + 5), 0);
+	}
+
+	private byte[] readValueAt(final int offset) {
+		final int keyLength = mBuffer.getInt(offset + 1);
+		final byte[] valueBytes = new byte[mBuffer.getInt(offset + 5)];
+		mBuffer.position(offset + RECORD_HEADER_SIZE + keyLength);
+		mBuffer.get(valueBytes);
+
+		return valueBytes;
+	}
+
+}
@@ -0,0 +1,557 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import im.delight.android.commons.Cache.Node;
+import im.delight.android.commons.Cache.NodeList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Strategy that decides which entries a `Cache` drops once it is full
+ *
+ * Different workloads favor different strategies, e.g. recency for sessions, frequency for catalogs, or a mix for workloads that contain scans
+ *
+ * Instances are immutable and can be passed to any number of caches, each of which keeps its own state
+ */
+public abstract class EvictionPolicy {
+
+	/** The default share (in percent) of the capacity that is reserved for entries that have been used more than once */
+	public static final int DEFAULT_PROTECTED_PERCENT = 80;
+	/** The share (in percent) of the capacity that 2Q admits new entries to before they are dropped in insertion order */
+	private static final int TWO_QUEUE_IN_PERCENT = 25;
+	/** The share (in percent) of the capacity that 2Q remembers the keys of dropped entries for */
+	private static final int TWO_QUEUE_OUT_PERCENT = 50;
+	/** The number of frequency levels that LFU distinguishes */
+	private static final int LFU_LEVELS = 16;
+	/** LFU halves all frequencies once the number of accesses reaches this multiple of the number of entries */
+	private static final int LFU_AGING_FACTOR = 10;
+
+	/** Only the policies in this class may be used */
+	EvictionPolicy() { }
+
+	/**
+	 * Drops the entry that has been added first, regardless of accesses
+	 *
+	 * @return the policy
+	 */
+	public static EvictionPolicy fifo() {
+		return new EvictionPolicy() {
+
+			@Override
+			<K, V> Instance<K, V> newInstance(final long maximumWeight) {
+				return new Single<K, V>(false);
+			}
+
+		};
+	}
+
+	/**
+	 * Drops the entry that has been used least recently
+	 *
+	 * @return the policy
+	 */
+	public static EvictionPolicy lru() {
+		return new EvictionPolicy() {
+
+			@Override
+			<K, V> Instance<K, V> newInstance(final long maximumWeight) {
+				return new Single<K, V>(true);
+			}
+
+		};
+	}
+
+	/**
+	 * Segmented LRU with the default size of the protected segment
+	 *
+	 * @return the policy
+	 */
+	public static EvictionPolicy segmentedLru() {
+		return segmentedLru(DEFAULT_PROTECTED_PERCENT);
+	}
+
+	/**
+	 * Segmented LRU, which admits new entries to a probationary segment and promotes them to a protected segment once they are used again
+	 *
+	 * Entries are dropped from the probationary segment first, so that entries that are used only once (e.g. during scans) cannot displace popular entries
+	 *
+	 * @param protectedPercent the share (in percent) of the capacity that the protected segment may take up
+	 * @return the policy
+	 */
+	public static EvictionPolicy segmentedLru(final int protectedPercent) {
+		if (protectedPercent < 0 || protectedPercent > 100) {
+			throw new RuntimeException("protectedPercent must be between 0 and 100");
+		}
+
+		return new EvictionPolicy() {
+
+			@Override
+			<K, V> Instance<K, V> newInstance(final long maximumWeight) {
+				return new SegmentedLru<K, V>(maximumWeight, protectedPercent);
+			}
+
+		};
+	}
+
+	/**
+	 * 2Q, which admits new entries to a queue in insertion order and moves them to an LRU list only if they are requested again after they have been dropped from that queue
+	 *
+	 * The keys of recently dropped entries are remembered, which makes the policy resistant to scans
+	 *
+	 * @return the policy
+	 */
+	public static EvictionPolicy twoQueue() {
+		return new EvictionPolicy() {
+
+			@Override
+			<K, V> Instance<K, V> newInstance(final long maximumWeight) {
+				return new TwoQueue<K, V>(maximumWeight);
+			}
+
+		};
+	}
+
+	/**
+	 * Adaptive replacement cache (ARC), which balances between entries that have been used once and entries that have been used repeatedly
+	 *
+	 * The keys of recently dropped entries are remembered, and the balance shifts towards whichever side would have avoided more misses
+	 *
+	 * @return the policy
+	 */
+	public static EvictionPolicy arc() {
+		return new EvictionPolicy() {
+
+			@Override
+			<K, V> Instance<K, V> newInstance(final long maximumWeight) {
+				return new AdaptiveReplacement<K, V>(maximumWeight);
+			}
+
+		};
+	}
+
+	/**
+	 * Drops the entry that has been used least frequently, and among those, the one that has been used least recently
+	 *
+	 * The frequencies are halved periodically, so that entries that have been popular in the past do not stay in the cache forever
+	 *
+	 * @return the policy
+	 */
+	public static EvictionPolicy lfu() {
+		return new EvictionPolicy() {
+
+			@Override
+			<K, V> Instance<K, V> newInstance(final long maximumWeight) {
+				return new LeastFrequentlyUsed<K, V>();
+			}
+
+		};
+	}
+
+	/**
+	 * Creates the state of this policy for a single cache
+	 *
+	 * @param maximumWeight the maximum total weight of the cache
+	 * @return the state
+	 */
+	abstract <K, V> Instance<K, V> newInstance(long maximumWeight);
+
+	/** State of a policy for a single cache, which keeps the entries in lists and which is only used while holding the cache's lock */
+	abstract static class Instance<K, V> {
+
+		/** All lists that hold entries, from the list whose entries are dropped first to the list whose entries are dropped last */
+		final NodeList<K, V>[] mLists;
+
+		@SuppressWarnings("unchecked")
+		Instance(final int listCount) {
+			mLists = (NodeList<K, V>[]) new NodeList[listCount];
+
+			for (int i = 0; i < listCount; i++) {
+				mLists[i] = new NodeList<K, V>();
+				mLists[i].mLevel = i;
+			}
+		}
+
+		/** Adds the given new entry to one of the lists */
+		abstract void onInsert(Node<K, V> node, Object mapKey);
+
+		/** Records an access of the given entry */
+		abstract void onAccess(Node<K, V> node);
+
+		/** Returns the entry to drop next, which is removed from its list by the cache */
+		abstract Node<K, V> selectVictim();
+
+		/** Adapts to a new maximum total weight of the cache */
+		void setMaximumWeight(final long maximumWeight) { }
+
+		long weight() {
+			long weight = 0;
+
+			for (NodeList<K, V> list : mLists) {
+				weight += list.mWeight;
+			}
+
+			return weight;
+		}
+
+	}
+
+	/** Keys of entries that have been dropped recently, along with their weights, from the eldest to the most recent one */
+	private static class Ghosts {
+
+		private final LinkedHashMap<Object, Integer> mKeys = new LinkedHashMap<Object, Integer>();
+		private long mWeight;
+
+		public void add(final Object mapKey, final int weight) {
+			final Integer previous = mKeys.put(mapKey, weight);
+
+			if (previous != null) {
+				mWeight -= previous;
+			}
+
+			mWeight += weight;
+		}
+
+		public boolean remove(final Object mapKey) {
+			final Integer weight = mKeys.remove(mapKey);
+
+			if (weight != null) {
+				mWeight -= weight;
+
+				return true;
+			}
+			else {
+				return false;
+			}
+		}
+
+		/** Forgets the eldest keys until the total weight fits into the given maximum */
+		public void trimTo(final long maximumWeight) {
+			final Iterator<Map.Entry<Object, Integer>> iterator = mKeys.entrySet().iterator();
+
+			while (mWeight > maximumWeight && iterator.hasNext()) {
+				mWeight -= iterator.next().getValue();
+				iterator.remove();
+			}
+		}
+
+	}
+
+	/** FIFO or LRU in a single list */
+	private static class Single<K, V> extends Instance<K, V> {
+
+		private final boolean mAccessOrder;
+
+		public Single(final boolean accessOrder) {
+			super(1);
+
+			mAccessOrder = accessOrder;
+		}
+
+		@Override
+		void onInsert(final Node<K, V> node, final Object mapKey) {
+			mLists[0].linkLast(node);
+		}
+
+		@Override
+		void onAccess(final Node<K, V> node) {
+			if (mAccessOrder) {
+				node.mList.moveToTail(node);
+			}
+		}
+
+		@Override
+		Node<K, V> selectVictim() {
+			return mLists[0].mHead;
+		}
+
+	}
+
+	private static class SegmentedLru<K, V> extends Instance<K, V> {
+
+		private final int mProtectedPercent;
+		private final NodeList<K, V> mProbation;
+		private final NodeList<K, V> mProtected;
+		private long mProtectedWeight;
+
+		public SegmentedLru(final long maximumWeight, final int protectedPercent) {
+			super(2);
+
+			mProtectedPercent = protectedPercent;
+			mProbation = mLists[0];
+			mProtected = mLists[1];
+
+			setMaximumWeight(maximumWeight);
+		}
+
+		@Override
+		void onInsert(final Node<K, V> node, final Object mapKey) {
+			mProbation.linkLast(node);
+		}
+
+		@Override
+		void onAccess(final Node<K, V> node) {
+			if (node.mList == mProtected) {
+				mProtected.moveToTail(node);
+			}
+			else {
+				mProbation.unlink(node);
+				mProtected.linkLast(node);
+
+				// demote the least recently used protected entries to give them another chance on probation
+				while (mProtected.mWeight > mProtectedWeight && mProtected.mHead != node) {
+					final Node<K, V> demoted = mProtected.mHead;
+					mProtected.unlink(demoted);
+					mProbation.linkLast(demoted);
+				}
+			}
+		}
+
+		@Override
+		Node<K, V> selectVictim() {
+			return mProbation.mHead != null ? mProbation.mHead : mProtected.mHead;
+		}
+
+		@Override
+		void setMaximumWeight(final long maximumWeight) {
+			mProtectedWeight = maximumWeight * mProtectedPercent / 100;
+		}
+
+	}
+
+	private static class TwoQueue<K, V> extends Instance<K, V> {
+
+		/** Entries that have been added once, in insertion order */
+		private final NodeList<K, V> mIn;
+		/** Entries that have been requested again after they had been dropped from the first queue, in LRU order */
+		private final NodeList<K, V> mMain;
+		/** Keys of entries that have been dropped from the first queue */
+		private final Ghosts mOut;
+		private long mInWeight;
+		private long mOutWeight;
+
+		public TwoQueue(final long maximumWeight) {
+			super(2);
+
+			mIn = mLists[0];
+			mMain = mLists[1];
+			mOut = new Ghosts();
+
+			setMaximumWeight(maximumWeight);
+		}
+
+		@Override
+		void onInsert(final Node<K, V> node, final Object mapKey) {
+			if (mOut.remove(mapKey)) {
+				mMain.linkLast(node);
+			}
+			else {
+				mIn.linkLast(node);
+			}
+		}
+
+		@Override
+		void onAccess(final Node<K, V> node) {
+			// accesses while in the first queue are considered correlated and do not count
+			if (node.mList == mMain) {
+				mMain.moveToTail(node);
+			}
+		}
+
+		@Override
+		Node<K, V> selectVictim() {
+			if (mIn.mHead != null && (mIn.mWeight > mInWeight || mMain.mHead == null)) {
+				final Node<K, V> victim = mIn.mHead;
+				mOut.add(toMapKey(victim), victim.mWeight);
+				mOut.trimTo(mOutWeight);
+
+				return victim;
+			}
+			else {
+				return mMain.mHead;
+			}
+		}
+
+		@Override
+		void setMaximumWeight(final long maximumWeight) {
+			mInWeight = maximumWeight * TWO_QUEUE_IN_PERCENT / 100;
+			mOutWeight = maximumWeight * TWO_QUEUE_OUT_PERCENT / 100;
+			mOut.trimTo(mOutWeight);
+		}
+
+	}
+
+	private static class AdaptiveReplacement<K, V> extends Instance<K, V> {
+
+		/** Entries that have been used once recently */
+		private final NodeList<K, V> mRecent;
+		/** Entries that have been used at least twice recently */
+		private final NodeList<K, V> mFrequent;
+		/** Keys of entries that have been dropped from the recent entries */
+		private final Ghosts mRecentGhosts;
+		/** Keys of entries that have been dropped from the frequent entries */
+		private final Ghosts mFrequentGhosts;
+		private long mMaximumWeight;
+		/** The target weight of the recent entries, which adapts to the workload */
+		private long mTarget;
+		/** Whether the most recently added entry has been found among the keys dropped from the frequent entries */
+		private boolean mFrequentGhostHit;
+
+		public AdaptiveReplacement(final long maximumWeight) {
+			super(2);
+
+			mRecent = mLists[0];
+			mFrequent = mLists[1];
+			mRecentGhosts = new Ghosts();
+			mFrequentGhosts = new Ghosts();
+			mMaximumWeight = maximumWeight;
+		}
+
+		@Override
+		void onInsert(final Node<K, V> node, final Object mapKey) {
+			final long weight = Math.max(node.mWeight, 1);
+			mFrequentGhostHit = false;
+
+			// a miss on a key that has been dropped recently shows which side should have been larger
+			if (mRecentGhosts.mKeys.containsKey(mapKey)) {
+				final long delta = mRecentGhosts.mWeight >= mFrequentGhosts.mWeight ? 1 : mFrequentGhosts.mWeight / Math.max(mRecentGhosts.mWeight, 1);
+				mTarget = Math.min(mTarget + delta * weight, mMaximumWeight);
+				mRecentGhosts.remove(mapKey);
+				mFrequent.linkLast(node);
+			}
+			else if (mFrequentGhosts.mKeys.containsKey(mapKey)) {
+				final long delta = mFrequentGhosts.mWeight >= mRecentGhosts.mWeight ? 1 : mRecentGhosts.mWeight / Math.max(mFrequentGhosts.mWeight, 1);
+				mTarget = Math.max(mTarget - delta * weight, 0);
+				mFrequentGhosts.remove(mapKey);
+				mFrequent.linkLast(node);
+				mFrequentGhostHit = true;
+			}
+			else {
+				mRecent.linkLast(node);
+			}
+		}
+
+		@Override
+		void onAccess(final Node<K, V> node) {
+			node.mList.unlink(node);
+			mFrequent.linkLast(node);
+		}
+
+		@Override
+		Node<K, V> selectVictim() {
+			final Node<K, V> victim;
+
+			if (mRecent.mHead != null && (mRecent.mWeight > mTarget || (mFrequentGhostHit && mRecent.mWeight >= mTarget) || mFrequent.mHead == null)) {
+				victim = mRecent.mHead;
+				mRecentGhosts.add(toMapKey(victim), victim.mWeight);
+			}
+			else {
+				victim = mFrequent.mHead;
+				mFrequentGhosts.add(toMapKey(victim), victim.mWeight);
+			}
+
+			trimGhosts();
+
+			return victim;
+		}
+
+		@Override
+		void setMaximumWeight(final long maximumWeight) {
+			mMaximumWeight = maximumWeight;
+			mTarget = Math.min(mTarget, maximumWeight);
+
+			trimGhosts();
+		}
+
+		/** Limits the remembered keys so that the recent side and everything together stay within one and two times the capacity */
+		private void trimGhosts() {
+			mRecentGhosts.trimTo(Math.max(mMaximumWeight - mRecent.mWeight, 0));
+			mFrequentGhosts.trimTo(Math.max(2 * mMaximumWeight - mRecent.mWeight - mFrequent.mWeight - mRecentGhosts.mWeight, 0));
+		}
+
+	}
+
+	private static class LeastFrequentlyUsed<K, V> extends Instance<K, V> {
+
+		/** The number of accesses since the frequencies have been halved */
+		private long mAccesses;
+
+		public LeastFrequentlyUsed() {
+			super(LFU_LEVELS);
+		}
+
+		@Override
+		void onInsert(final Node<K, V> node, final Object mapKey) {
+			mLists[0].linkLast(node);
+		}
+
+		@Override
+		void onAccess(final Node<K, V> node) {
+			final int level = node.mList.mLevel;
+			node.mList.unlink(node);
+			mLists[Math.min(level + 1, LFU_LEVELS - 1)].linkLast(node);
+
+			if (++mAccesses >= (long) LFU_AGING_FACTOR * Math.max(count(), 1)) {
+				age();
+			}
+		}
+
+		@Override
+		Node<K, V> selectVictim() {
+			for (NodeList<K, V> list : mLists) {
+				if (list.mHead != null) {
+					return list.mHead;
+				}
+			}
+
+			return null;
+		}
+
+		/** Halves the frequencies of all entries */
+		private void age() {
+			for (int level = 1; level < LFU_LEVELS; level++) {
+				final NodeList<K, V> list = mLists[level];
+				final NodeList<K, V> target = mLists[level >> 1];
+
+				while (list.mHead != null) {
+					final Node<K, V> node = list.mHead;
+					list.unlink(node);
+					target.linkLast(node);
+				}
+			}
+
+			mAccesses = 0;
+		}
+
+		private int count() {
+			int count = 0;
+
+			for (NodeList<K, V> list : mLists) {
+				count += list.mCount;
+			}
+
+			return count;
+		}
+
+	}
+
+	private static Object toMapKey(final Node<?, ?> node) {
+		return Cache.maskNull(node.mKey);
+	}
+
+}
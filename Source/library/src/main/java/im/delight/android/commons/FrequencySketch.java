@@ -0,0 +1,147 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Count-min sketch that estimates how often keys have been used recently
+ *
+ * Every key is counted in four 4-bit counters, so that the estimate is capped at 15
+ *
+ * After a number of increments proportional to the capacity, all counters are halved, so that the popularity of keys fades over time
+ *
+ * This implementation is not thread-safe
+ */
+final class FrequencySketch {
+
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int MAX_COUNT = 15;
+	private static final int MAX_TABLE_LENGTH = 1 << 24;
+	private long[] mTable;
+	private int mTableMask;
+	private int mSampleSize;
+	private int mSize;
+
+	/**
+	 * Creates a new sketch for the given number of elements
+	 *
+	 * @param capacity the maximum number of elements that the cache will hold
+	 */
+	public FrequencySketch(final int capacity) {
+		ensureCapacity(Math.max(capacity, 1));
+	}
+
+	/**
+	 * Grows the sketch so that it can track the given number of elements accurately
+	 *
+	 * Growing the sketch discards all popularity that has been recorded so far
+	 *
+	 * @param capacity the number of elements that the cache holds
+	 */
+	public void ensureCapacity(final int capacity) {
+		if (mTable != null && (capacity <= mTable.length || mTable.length >= MAX_TABLE_LENGTH)) {
+			return;
+		}
+
+		int length = 1;
+		while (length < capacity && length < MAX_TABLE_LENGTH) {
+			length <<= 1;
+		}
+
+		mTable = new long[length];
+		mTableMask = length - 1;
+		mSampleSize = 10 * length;
+		mSize = 0;
+	}
+
+	/**
+	 * Increments the popularity of the given key
+	 *
+	 * @param key the key that has been used
+	 */
+	public void increment(final Object key) {
+		final int hash = spread(key);
+		final int start = (hash & 3) << 2;
+
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+
+		if (added && ++mSize >= mSampleSize) {
+			reset();
+		}
+	}
+
+	/**
+	 * Returns the estimated popularity of the given key
+	 *
+	 * @param key the key to look up
+	 * @return the estimated number of recent uses (between `0` and `15`)
+	 */
+	public int frequency(final Object key) {
+		final int hash = spread(key);
+		final int start = (hash & 3) << 2;
+
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < 4; i++) {
+			final int count = (int) ((mTable[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+
+		return frequency;
+	}
+
+	private boolean incrementAt(final int index, final int counter) {
+		final int offset = counter << 2;
+		final long mask = 0xfL << offset;
+
+		if ((mTable[index] & mask) != mask) {
+			mTable[index] += 1L << offset;
+
+			return true;
+		}
+		else {
+			return false;
+		}
+	}
+
+	/** Halves all counters so that old uses lose their weight */
+	private void reset() {
+		for (int i = 0; i < mTable.length; i++) {
+			mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+		}
+
+		mSize /= 2;
+	}
+
+	private int indexOf(final int hash, final int i) {
+		long value = (hash + SEEDS[i]) * SEEDS[i];
+		value += value >>> 32;
+
+		return ((int) value) & mTableMask;
+	}
+
+	private static int spread(final Object key) {
+		int hash = key == null ? 0 : key.hashCode();
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+		hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+
+		return (hash >>> 16) ^ hash;
+	}
+
+}
@@ -0,0 +1,335 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the keys that are used most often in a `Cache`, which are enabled through `Cache.trackHotKeys(...)`
+ *
+ * A fixed number of counters is kept, where a key that is not counted yet replaces the key with the lowest count and inherits its count as a possible error (Space-Saving)
+ *
+ * Every key that accounts for more than `1 / capacity` of the counted uses is guaranteed to be tracked
+ *
+ * Uses are recorded in a striped buffer without blocking and counted in batches by whichever thread can update the counters without waiting
+ *
+ * If the buffer is full or contended because uses are recorded faster than they can be counted, uses are dropped instead of making threads wait, which `getTotalCount()` reflects
+ *
+ * This implementation is thread-safe
+ *
+ * @param <K> the type of the keys
+ */
+public final class HotKeys<K> {
+
+	private static final Comparator<Counter<?>> BY_COUNT_DESCENDING = new Comparator<Counter<?>>() {
+
+		@Override
+		public int compare(final Counter<?> a, final Counter<?> b) {
+			return a.mCount < b.mCount ? 1 : (a.mCount > b.mCount ? -1 : 0);
+		}
+
+	};
+	/** Placeholder for the `null` key, as the buffer cannot hold `null` */
+	private static final Object NULL_KEY = new Object();
+	private final ReentrantLock mLock;
+	/** The uses that have not been counted yet */
+	private final ReadBuffer<Object> mBuffer;
+	/** Counts the uses that are taken from the buffer (requires `mLock`) */
+	private final ReadBuffer.Sink<Object> mCounting;
+	/** The counters by their keys (guarded by `mLock`) */
+	private final HashMap<K, Counter<K>> mCounters;
+	/** The counters as a binary min-heap by their counts, so that the counter with the lowest count is at the root (guarded by `mLock`) */
+	private final Counter<K>[] mHeap;
+	/** The number of counters in use (guarded by `mLock`) */
+	private int mSize;
+	/** The number of uses that have been counted (guarded by `mLock`) */
+	private long mTotal;
+
+	/**
+	 * Creates a new instance with the given number of counters
+	 *
+	 * @param capacity the maximum number of keys to track
+	 */
+	public HotKeys(final int capacity) {
+		if (capacity < 1) {
+			throw new RuntimeException("capacity must be positive");
+		}
+
+		mLock = new ReentrantLock();
+		mBuffer = new ReadBuffer<Object>();
+		mCounting = new ReadBuffer.Sink<Object>() {
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public void accept(final Object element) {
+				count(element == NULL_KEY ? null : (K) element);
+			}
+
+		};
+		mCounters = new HashMap<K, Counter<K>>(capacity * 4 / 3 + 1);
+		mHeap = newArray(capacity);
+	}
+
+	/**
+	 * Counts a use of the given key
+	 *
+	 * @param key the key that has been used
+	 */
+	public void offer(final K key) {
+		// losing a few uses under contention is preferable to making the caller wait, as this is called from lookups
+		if (mBuffer.offer(key == null ? NULL_KEY : key) && mLock.tryLock()) {
+			try {
+				mBuffer.drainTo(mCounting);
+			}
+			finally {
+				mLock.unlock();
+			}
+		}
+	}
+
+	/** Counts a single use of the given key (requires `mLock`) */
+	private void count(final K key) {
+		mTotal++;
+
+		Counter<K> counter = mCounters.get(key);
+
+		if (counter == null) {
+			if (mSize < mHeap.length) {
+				counter = new Counter<K>(key, mSize);
+				mHeap[mSize++] = counter;
+				mCounters.put(key, counter);
+				siftUp(counter.mIndex);
+			}
+			else {
+				// replace the key with the lowest count, whose count becomes the possible error of the new key
+				counter = mHeap[0];
+				mCounters.remove(counter.mKey);
+				counter.mKey = key;
+				counter.mError = counter.mCount;
+				mCounters.put(key, counter);
+			}
+		}
+
+		counter.mCount++;
+		siftDown(counter.mIndex);
+	}
+
+	/**
+	 * Returns the keys that have been used most often, ordered from the most frequent key
+	 *
+	 * Keys whose error is close to their count may have replaced other keys only recently and are not necessarily frequent
+	 *
+	 * @param count the maximum number of keys to return
+	 * @return a list of the keys with their counts
+	 */
+	public List<Entry<K>> getTop(final int count) {
+		final Counter<K>[] counters;
+
+		mLock.lock();
+
+		try {
+			mBuffer.drainTo(mCounting);
+			counters = newArray(mSize);
+
+			for (int i = 0; i < mSize; i++) {
+				counters[i] = mHeap[i].copy();
+			}
+		}
+		finally {
+			mLock.unlock();
+		}
+
+		Arrays.sort(counters, BY_COUNT_DESCENDING);
+
+		final int length = Math.min(count, counters.length);
+		final ArrayList<Entry<K>> out = new ArrayList<Entry<K>>(Math.max(length, 0));
+
+		for (int i = 0; i < length; i++) {
+			out.add(new Entry<K>(counters[i].mKey, counters[i].mCount, counters[i].mError));
+		}
+
+		return out;
+	}
+
+	/**
+	 * Returns the number of uses that have been counted in total
+	 *
+	 * @return the number of uses
+	 */
+	public long getTotalCount() {
+		mLock.lock();
+
+		try {
+			mBuffer.drainTo(mCounting);
+
+			return mTotal;
+		}
+		finally {
+			mLock.unlock();
+		}
+	}
+
+	/** Discards all counts, e.g. to observe only the uses from now on */
+	public void reset() {
+		mLock.lock();
+
+		try {
+			// count the pending uses first, so that they are discarded as well
+			mBuffer.drainTo(mCounting);
+			Arrays.fill(mHeap, null);
+			mCounters.clear();
+			mSize = 0;
+			mTotal = 0;
+		}
+		finally {
+			mLock.unlock();
+		}
+	}
+
+	private void siftUp(int index) {
+		final Counter<K> counter = mHeap[index];
+
+		while (index > 0) {
+			final int parent = (index - 1) >>> 1;
+
+			if (mHeap[parent].mCount <= counter.mCount) {
+				break;
+			}
+
+			place(mHeap[parent], index);
+			index = parent;
+		}
+
+		place(counter, index);
+	}
+
+	private void siftDown(int index) {
+		final Counter<K> counter = mHeap[index];
+
+		while (true) {
+			int child = (index << 1) + 1;
+
+			if (child >= mSize) {
+				break;
+			}
+
+			if (child + 1 < mSize && mHeap[child + 1].mCount < mHeap[child].mCount) {
+				child++;
+			}
+
+			if (counter.mCount <= mHeap[child].mCount) {
+				break;
+			}
+
+			place(mHeap[child], index);
+			index = child;
+		}
+
+		place(counter, index);
+	}
+
+	private void place(final Counter<K> counter, final int index) {
+		mHeap[index] = counter;
+		counter.mIndex = index;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K> Counter<K>[] newArray(final int length) {
+		return (Counter<K>[]) new Counter[length];
+	}
+
+	private static final class Counter<K> {
+
+		private K mKey;
+		private long mCount;
+		/** The maximum amount by which the count may exceed the actual number of uses */
+		private long mError;
+		/** The position of this counter in the heap */
+		private int mIndex;
+
+		Counter(final K key, final int index) {
+			mKey = key;
+			mIndex = index;
+		}
+
+		Counter<K> copy() {
+			final Counter<K> out = new Counter<K>(mKey, mIndex);
+			out.mCount = mCount;
+			out.mError = mError;
+
+			return out;
+		}
+
+	}
+
+	/**
+	 * A key that has been used often, with an estimate of the number of uses
+	 *
+	 * @param <K> the type of the key
+	 */
+	public static final class Entry<K> {
+
+		private final K mKey;
+		private final long mCount;
+		private final long mError;
+
+		private Entry(final K key, final long count, final long error) {
+			mKey = key;
+			mCount = count;
+			mError = error;
+		}
+
+		/**
+		 * Returns the key
+		 *
+		 * @return the key
+		 */
+		public K getKey() {
+			return mKey;
+		}
+
+		/**
+		 * Returns the estimated number of uses, which is never lower than the actual number
+		 *
+		 * @return the estimated number of uses
+		 */
+		public long getCount() {
+			return mCount;
+		}
+
+		/**
+		 * Returns the maximum amount by which the estimated number of uses may exceed the actual number
+		 *
+		 * @return the maximum error of the count
+		 */
+		public long getError() {
+			return mError;
+		}
+
+		@Override
+		public String toString() {
+			return mKey+"="+mCount+" (error "+mError+")";
+		}
+
+	}
+
+}
@@ -0,0 +1,356 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * LRU (least recently used) cache with `int` keys that can hold a fixed number of elements in memory
+ *
+ * If the cache is full and a new entry is added, the least recently used entry will be dropped
+ *
+ * The keys are stored in primitive arrays, so that lookups and insertions never box the keys and entries do not need objects of their own
+ *
+ * This implementation is thread-safe
+ *
+ * @param <V> the type of the values
+ */
+public class IntLruCache<V> {
+
+	/** Marks the end of the list of entries and an empty slot in the hash table */
+	private static final int NONE = -1;
+	private static final int INITIAL_CAPACITY = 16;
+	private final int mCacheSize;
+	/** The indices of the entries in the arrays below by the hashes of their keys, with linear probing */
+	private int[] mTable;
+	private int mTableMask;
+	private int[] mKeys;
+	private Object[] mValues;
+	/** The index of the previous (older) entry for each entry */
+	private int[] mPrev;
+	/** The index of the next (more recent) entry for each entry, or of the next unused index if the entry is unused */
+	private int[] mNext;
+	/** The index of the eldest entry */
+	private int mHead;
+	/** The index of the most recent entry */
+	private int mTail;
+	/** The first index that is not used by any entry, or `NONE` if the arrays are full */
+	private int mFree;
+	private int mSize;
+
+	/**
+	 * Creates a new instance with the given cache size
+	 *
+	 * @param cacheSize the maximum number of elements to hold
+	 */
+	public IntLruCache(final int cacheSize) {
+		if (cacheSize < 1) {
+			throw new RuntimeException("cacheSize must be positive");
+		}
+
+		mCacheSize = cacheSize;
+		mHead = NONE;
+		mTail = NONE;
+
+		allocate(Math.min(cacheSize, INITIAL_CAPACITY));
+	}
+
+	/**
+	 * Inserts a new element and possibly overwrites any previous value with the same key
+	 *
+	 * @param key the key to save the value for
+	 * @param value the value to save
+	 * @return the previous value or `null`
+	 */
+	public synchronized V put(final int key, final V value) {
+		int slot = findSlot(key);
+
+		if (mTable[slot] != NONE) {
+			final int index = mTable[slot];
+			final V previous = valueAt(index);
+			mValues[index] = value;
+			moveToTail(index);
+
+			if (previous != null) {
+				onEntryRemoved(key, previous, true);
+			}
+
+			return previous;
+		}
+
+		if (mSize == mCacheSize) {
+			final int eldest = mHead;
+			final int eldestKey = mKeys[eldest];
+			final V eldestValue = valueAt(eldest);
+			removeAt(eldest);
+			onEntryRemoved(eldestKey, eldestValue, false);
+
+			// the slot for the new key may have moved due to the removal
+			slot = findSlot(key);
+		}
+		else if (mFree == NONE) {
+			grow();
+			slot = findSlot(key);
+		}
+
+		final int index = mFree;
+		mFree = mNext[index];
+		mKeys[index] = key;
+		mValues[index] = value;
+		mTable[slot] = index;
+		linkLast(index);
+		mSize++;
+
+		return null;
+	}
+
+	/**
+	 * Returns the value for the given key
+	 *
+	 * @param key the key to look up
+	 * @return the value that was found for the key or `null`
+	 */
+	public synchronized V get(final int key) {
+		final int index = mTable[findSlot(key)];
+
+		if (index == NONE) {
+			return null;
+		}
+
+		moveToTail(index);
+
+		return valueAt(index);
+	}
+
+	/**
+	 * Removes the entry with the specified key
+	 *
+	 * @param key the key to remove
+	 * @return the old value for the specified key
+	 */
+	public synchronized V remove(final int key) {
+		final int index = mTable[findSlot(key)];
+
+		if (index == NONE) {
+			return null;
+		}
+
+		final V value = valueAt(index);
+		removeAt(index);
+		onEntryRemoved(key, value, true);
+
+		return value;
+	}
+
+	/**
+	 * Returns all keys that are currently in this cache
+	 *
+	 * The keys are copied and ordered from the eldest to the most recent entry
+	 *
+	 * @return an array containing the keys
+	 */
+	public synchronized int[] keys() {
+		final int[] out = new int[mSize];
+
+		int i = 0;
+		for (int index = mHead; index != NONE; index = mNext[index]) {
+			out[i++] = mKeys[index];
+		}
+
+		return out;
+	}
+
+	/**
+	 * Returns all values that are currently in this cache
+	 *
+	 * The values are copied and ordered from the eldest to the most recent entry
+	 *
+	 * @return a collection containing the values
+	 */
+	public synchronized Collection<V> values() {
+		final ArrayList<V> out = new ArrayList<V>(mSize);
+
+		for (int index = mHead; index != NONE; index = mNext[index]) {
+			out.add(valueAt(index));
+		}
+
+		return out;
+	}
+
+	/**
+	 * Returns the current size of this cache
+	 *
+	 * @return the number of elements contained in this cache
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * Override this method if you want to be informed whenever an entry is removed from the cache
+	 *
+	 * You may use this if you must manually release resources when an element is deleted
+	 *
+	 * The default implementation does nothing
+	 *
+	 * @param key the key that was removed
+	 * @param value the value that was removed
+	 * @param causedManually whether the removal was caused manually (through `put(...)` or `remove(...)`) or automatically
+	 */
+	@SuppressWarnings("unused")
+	public void onEntryRemoved(final int key, final V value, final boolean causedManually) { }
+
+	/** Returns the slot of the given key in the hash table, or the empty slot where the key would be inserted */
+	private int findSlot(final int key) {
+		int slot = hash(key) & mTableMask;
+
+		while (mTable[slot] != NONE && mKeys[mTable[slot]] != key) {
+			slot = (slot + 1) & mTableMask;
+		}
+
+		return slot;
+	}
+
+	/** Removes the entry at the given index from the hash table and from the list and releases the index */
+	private void removeAt(final int index) {
+		int gap = findSlot(mKeys[index]);
+
+		// shift the following entries back so that no entry becomes unreachable from its ideal slot
+		int slot = (gap + 1) & mTableMask;
+		while (mTable[slot] != NONE) {
+			final int ideal = hash(mKeys[mTable[slot]]) & mTableMask;
+
+			if (((slot - ideal) & mTableMask) >= ((slot - gap) & mTableMask)) {
+				mTable[gap] = mTable[slot];
+				gap = slot;
+			}
+
+			slot = (slot + 1) & mTableMask;
+		}
+
+		mTable[gap] = NONE;
+
+		unlink(index);
+		mValues[index] = null;
+		mNext[index] = mFree;
+		mFree = index;
+		mSize--;
+	}
+
+	private void linkLast(final int index) {
+		mPrev[index] = mTail;
+		mNext[index] = NONE;
+
+		if (mTail == NONE) {
+			mHead = index;
+		}
+		else {
+			mNext[mTail] = index;
+		}
+
+		mTail = index;
+	}
+
+	private void unlink(final int index) {
+		if (mPrev[index] == NONE) {
+			mHead = mNext[index];
+		}
+		else {
+			mNext[mPrev[index]] = mNext[index];
+		}
+
+		if (mNext[index] == NONE) {
+			mTail = mPrev[index];
+		}
+		else {
+			mPrev[mNext[index]] = mPrev[index];
+		}
+	}
+
+	private void moveToTail(final int index) {
+		if (index != mTail) {
+			unlink(index);
+			linkLast(index);
+		}
+	}
+
+	/** Creates arrays for the given number of entries and a hash table that is at most half full */
+	private void allocate(final int capacity) {
+		int tableLength = 2;
+		while (tableLength < capacity * 2L) {
+			tableLength <<= 1;
+		}
+
+		mTable = new int[tableLength];
+		mTableMask = tableLength - 1;
+		mKeys = new int[capacity];
+		mValues = new Object[capacity];
+		mPrev = new int[capacity];
+		mNext = new int[capacity];
+
+		for (int i = 0; i < tableLength; i++) {
+			mTable[i] = NONE;
+		}
+
+		// chain all indices into the list of unused indices
+		for (int i = 0; i < capacity; i++) {
+			mNext[i] = i + 1 < capacity ? i + 1 : NONE;
+		}
+
+		mFree = 0;
+	}
+
+	/** Doubles the number of entries that can be held (up to the cache size) and rebuilds the hash table */
+	private void grow() {
+		final int[] keys = mKeys;
+		final Object[] values = mValues;
+		final int[] next = mNext;
+		final int head = mHead;
+		final int size = mSize;
+
+		allocate((int) Math.min(keys.length * 2L, mCacheSize));
+
+		// copy the entries in the order of the list so that they are compacted at the start of the arrays
+		mHead = NONE;
+		mTail = NONE;
+
+		int index = 0;
+		for (int old = head; old != NONE; old = next[old]) {
+			mKeys[index] = keys[old];
+			mValues[index] = values[old];
+			mTable[findSlot(keys[old])] = index;
+			linkLast(index);
+			index++;
+		}
+
+		// release the indices that have been used by the copies
+		mFree = size < mKeys.length ? size : NONE;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V valueAt(final int index) {
+		return (V) mValues[index];
+	}
+
+	private static int hash(final int key) {
+		final int hash = key * 0x9e3779b9;
+
+		return hash ^ (hash >>> 16);
+	}
+
+}
@@ -21,6 +21,10 @@ package im.delight.android.commons;
  *
  * If the cache is full and a new entry is added, the least recently used entry will be dropped
  *
+ * Lookups do not block, because accesses are recorded in a buffer and applied to the order of entries in batches
+ *
+ * Due to this, the order of evictions may deviate slightly from true LRU under heavy concurrent access
+ *
  * This implementation is thread-safe
  *
  * @param <K> the type of the keys
@@ -38,4 +42,39 @@ public final class LruCache<K, V> extends Cache<K, V> {
 		super(cacheSize, true);
 	}
 
+	/**
+	 * Creates a new instance with the given cache size and admission policy
+	 *
+	 * @param cacheSize the maximum number of elements to hold
+	 * @param admission the admission policy, either `Cache.ADMISSION_ALL` or `Cache.ADMISSION_FREQUENCY`
+	 */
+	public LruCache(final int cacheSize, final int admission) {
+		super(cacheSize, true, admission);
+	}
+
+	/**
+	 * Creates a new instance with the given maximum total weight
+	 *
+	 * The least recently used entries are dropped until the total weight of the remaining entries fits into the maximum again
+	 *
+	 * @param maximumWeight the maximum total weight of all elements
+	 * @param weigher the weigher that calculates the weight of each element
+	 */
+	public LruCache(final long maximumWeight, final Cache.Weigher<? super K, ? super V> weigher) {
+		super(maximumWeight, weigher, true, ADMISSION_ALL);
+	}
+
+	/**
+	 * Creates a new instance with the given maximum total weight and admission policy
+	 *
+	 * The least recently used entries are dropped until the total weight of the remaining entries fits into the maximum again
+	 *
+	 * @param maximumWeight the maximum total weight of all elements
+	 * @param weigher the weigher that calculates the weight of each element
+	 * @param admission the admission policy, either `Cache.ADMISSION_ALL` or `Cache.ADMISSION_FREQUENCY`
+	 */
+	public LruCache(final long maximumWeight, final Cache.Weigher<? super K, ? super V> weigher, final int admission) {
+		super(maximumWeight, weigher, true, admission);
+	}
+
 }
@@ -0,0 +1,615 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * LRU (least recently used) cache that stores its values outside of the Java heap
+ *
+ * The values are encoded with a `Cache.Codec` and copied into direct buffers, while only a small index of the keys is held on the heap
+ *
+ * This keeps large caches of serialized data from growing the heap and from prolonging garbage collection
+ *
+ * The memory is allocated in slabs of a fixed size, which are divided into chunks of a single size class each, so that values of similar sizes share slabs and the memory does not fragment
+ *
+ * If there is no free chunk for a new value, the least recently used value of the same size class is dropped, and if the size class has no values yet, the slab of the least recently used value overall is taken over
+ *
+ * This implementation is thread-safe
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class OffHeapCache<K, V> {
+
+	/** The default size of a slab in bytes */
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+	/** The size of the chunks in the smallest size class */
+	private static final int MIN_CHUNK_SIZE = 64;
+	/** The factor (in percent) by which the chunk size grows from one size class to the next */
+	private static final int GROWTH_PERCENT = 125;
+	/** Marks a slab that has not been assigned to any size class */
+	private static final int UNASSIGNED = -1;
+	private final int mSlabSize;
+	private final int mMaximumSlabs;
+	private final Cache.Codec<V> mValueCodec;
+	/** Whether `onEntryRemoved(...)` has been overridden, so that removed values must be decoded */
+	private final boolean mNotifiesRemovals;
+	private final HashMap<K, Entry<K>> mIndex;
+	private final ArrayList<Slab> mSlabs;
+	private final SizeClass<K>[] mSizeClasses;
+	/** The entries that have been removed but not yet passed to `onEntryRemoved(...)` */
+	private final ArrayList<Removal<K>> mRemovals;
+	/** Incremented with every access, so that the recency of entries from different size classes can be compared */
+	private long mClock;
+	private long mBytes;
+
+	/**
+	 * Creates a new instance with the given maximum size and the default slab size
+	 *
+	 * @param maximumBytes the maximum size of the memory outside of the heap in bytes
+	 * @param valueCodec the codec to convert values to bytes and back
+	 */
+	public OffHeapCache(final long maximumBytes, final Cache.Codec<V> valueCodec) {
+		this(maximumBytes, DEFAULT_SLAB_SIZE, valueCodec);
+	}
+
+	/**
+	 * Creates a new instance with the given maximum size and slab size
+	 *
+	 * Values larger than a slab cannot be stored
+	 *
+	 * @param maximumBytes the maximum size of the memory outside of the heap in bytes
+	 * @param slabSize the size of the slabs in bytes
+	 * @param valueCodec the codec to convert values to bytes and back
+	 */
+	@SuppressWarnings("unchecked")
+	public OffHeapCache(final long maximumBytes, final int slabSize, final Cache.Codec<V> valueCodec) {
+		if (slabSize < MIN_CHUNK_SIZE) {
+			throw new RuntimeException("slabSize must be at least "+MIN_CHUNK_SIZE);
+		}
+
+		if (maximumBytes < slabSize) {
+			throw new RuntimeException("maximumBytes must be at least slabSize");
+		}
+
+		if (valueCodec == null) {
+			throw new RuntimeException("valueCodec must not be null");
+		}
+
+		mSlabSize = slabSize;
+		mMaximumSlabs = (int) Math.min(maximumBytes / slabSize, Integer.MAX_VALUE);
+		mValueCodec = valueCodec;
+		mNotifiesRemovals = overridesOnEntryRemoved(getClass());
+		mIndex = new HashMap<K, Entry<K>>();
+		mSlabs = new ArrayList<Slab>();
+		mRemovals = new ArrayList<Removal<K>>();
+
+		// the chunk sizes grow geometrically and are aligned to eight bytes, with the last size class using entire slabs
+		final ArrayList<Integer> chunkSizes = new ArrayList<Integer>();
+		int chunkSize = MIN_CHUNK_SIZE;
+		while (chunkSize < slabSize / 2) {
+			chunkSizes.add(chunkSize);
+			chunkSize = (int) Math.min(((long) chunkSize * GROWTH_PERCENT / 100 + 7) & ~7L, slabSize);
+		}
+		chunkSizes.add(slabSize);
+
+		mSizeClasses = new SizeClass[chunkSizes.size()];
+		for (int i = 0; i < mSizeClasses.length; i++) {
+			mSizeClasses[i] = new SizeClass<K>(chunkSizes.get(i), slabSize / chunkSizes.get(i));
+		}
+	}
+
+	/**
+	 * Stores the given entry and replaces any previous value with the same key
+	 *
+	 * @param key the key to save the value for
+	 * @param value the value to save
+	 * @return whether the entry has been stored, which fails if the encoded value is larger than a slab
+	 */
+	public boolean put(final K key, final V value) {
+		// encode the value before acquiring the lock
+		final byte[] valueBytes = mValueCodec.encode(value);
+
+		synchronized (this) {
+			final Entry<K> previous = mIndex.remove(key);
+
+			if (previous != null) {
+				release(previous, true);
+			}
+
+			if (valueBytes.length <= mSlabSize) {
+				final int sizeClass = getSizeClass(valueBytes.length);
+				final long chunk = allocate(sizeClass);
+
+				final Entry<K> entry = new Entry<K>(key, sizeClass, getSlab(chunk), getOffset(chunk), valueBytes.length);
+				final ByteBuffer buffer = mSlabs.get(entry.mSlab).mBuffer.duplicate();
+				buffer.position(entry.mOffset);
+				buffer.put(valueBytes);
+
+				mIndex.put(key, entry);
+				mSizeClasses[sizeClass].linkLast(entry);
+				entry.mAccess = ++mClock;
+				mBytes += valueBytes.length;
+			}
+		}
+
+		deliverRemovals();
+
+		return valueBytes.length <= mSlabSize;
+	}
+
+	/**
+	 * Returns the value for the given key
+	 *
+	 * @param key the key to look up
+	 * @return the value that was found for the key or `null`
+	 */
+	public V get(final K key) {
+		final byte[] valueBytes;
+
+		synchronized (this) {
+			final Entry<K> entry = touch(key);
+
+			if (entry == null) {
+				return null;
+			}
+
+			valueBytes = read(entry);
+		}
+
+		// decode the value after releasing the lock
+		return mValueCodec.decode(valueBytes);
+	}
+
+	/**
+	 * Returns a read-only view of the encoded value for the given key without copying or decoding it
+	 *
+	 * The view starts at position zero and ends at the length of the encoded value
+	 *
+	 * The view shares its memory with the cache and thus becomes invalid once the entry is replaced, removed or dropped, after which it may show other data
+	 *
+	 * You must thus not hold on to the view beyond its immediate use
+	 *
+	 * @param key the key to look up
+	 * @return the view of the encoded value or `null`
+	 */
+	public synchronized ByteBuffer getBuffer(final K key) {
+		final Entry<K> entry = touch(key);
+
+		if (entry == null) {
+			return null;
+		}
+
+		final ByteBuffer buffer = mSlabs.get(entry.mSlab).mBuffer.duplicate();
+		buffer.position(entry.mOffset);
+		buffer.limit(entry.mOffset + entry.mLength);
+
+		return buffer.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Removes the entry with the specified key
+	 *
+	 * @param key the key to remove
+	 * @return the old value for the specified key or `null`
+	 */
+	public V remove(final K key) {
+		final byte[] valueBytes;
+
+		synchronized (this) {
+			final Entry<K> entry = mIndex.remove(key);
+
+			if (entry == null) {
+				return null;
+			}
+
+			valueBytes = read(entry);
+			release(entry, false);
+		}
+
+		final V value = mValueCodec.decode(valueBytes);
+		onEntryRemoved(key, value, true);
+
+		return value;
+	}
+
+	/**
+	 * Returns whether there is an entry for the given key
+	 *
+	 * @param key the key to look up
+	 * @return whether an entry exists
+	 */
+	public synchronized boolean contains(final K key) {
+		return mIndex.containsKey(key);
+	}
+
+	/**
+	 * Returns the number of entries
+	 *
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return mIndex.size();
+	}
+
+	/**
+	 * Returns the total size of all encoded values
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized long sizeInBytes() {
+		return mBytes;
+	}
+
+	/**
+	 * Returns the size of the memory that has been allocated outside of the heap
+	 *
+	 * @return the size in bytes, which is a multiple of the slab size
+	 */
+	public synchronized long getAllocatedBytes() {
+		return (long) mSlabs.size() * mSlabSize;
+	}
+
+	/**
+	 * Removes all entries and releases the memory outside of the heap
+	 *
+	 * The memory is returned to the system once the garbage collector has reclaimed the buffers
+	 */
+	public void clear() {
+		synchronized (this) {
+			if (mNotifiesRemovals) {
+				for (Entry<K> entry : mIndex.values()) {
+					mRemovals.add(new Removal<K>(entry.mKey, read(entry), true));
+				}
+			}
+
+			mIndex.clear();
+			mSlabs.clear();
+			mBytes = 0;
+
+			for (SizeClass<K> sizeClass : mSizeClasses) {
+				sizeClass.mHead = null;
+				sizeClass.mTail = null;
+				sizeClass.mFreeCount = 0;
+			}
+		}
+
+		deliverRemovals();
+	}
+
+	/**
+	 * Override this method if you want to be informed whenever an entry is removed from the cache
+	 *
+	 * The values are only decoded for this method if it has been overridden
+	 *
+	 * The default implementation does nothing
+	 *
+	 * @param key the key that was removed
+	 * @param value the value that was removed
+	 * @param causedManually whether the removal was caused manually (through `put(...)`, `remove(...)` or `clear()`) or automatically
+	 */
+	@SuppressWarnings("unused")
+	public void onEntryRemoved(final K key, final V value, final boolean causedManually) { }
+
+	/** Returns the entry for the given key and marks it as the most recently used one (requires the monitor) */
+	private Entry<K> touch(final K key) {
+		final Entry<K> entry = mIndex.get(key);
+
+		if (entry != null) {
+			final SizeClass<K> sizeClass = mSizeClasses[entry.mSizeClass];
+			sizeClass.unlink(entry);
+			sizeClass.linkLast(entry);
+			entry.mAccess = ++mClock;
+		}
+
+		return entry;
+	}
+
+	/** Copies the encoded value of the given entry (requires the monitor) */
+	private byte[] read(final Entry<K> entry) {
+		final byte[] out = new byte[entry.mLength];
+
+		final ByteBuffer buffer = mSlabs.get(entry.mSlab).mBuffer.duplicate();
+		buffer.position(entry.mOffset);
+		buffer.get(out);
+
+		return out;
+	}
+
+	/** Returns a free chunk of the given size class, which may require dropping other entries (requires the monitor) */
+	private long allocate(final int sizeClassIndex) {
+		final SizeClass<K> sizeClass = mSizeClasses[sizeClassIndex];
+
+		if (sizeClass.mFreeCount == 0) {
+			if (mSlabs.size() < mMaximumSlabs) {
+				final Slab slab = new Slab(ByteBuffer.allocateDirect(mSlabSize));
+				mSlabs.add(slab);
+				assign(mSlabs.size() - 1, sizeClassIndex);
+			}
+			else if (sizeClass.mHead != null) {
+				evict(sizeClass.mHead);
+			}
+			else {
+				reassignSlab(sizeClassIndex);
+			}
+		}
+
+		final long chunk = sizeClass.mFree[--sizeClass.mFreeCount];
+		mSlabs.get(getSlab(chunk)).mUsed++;
+
+		return chunk;
+	}
+
+	/** Takes over a slab from another size class, preferably one that is empty already (requires the monitor) */
+	private void reassignSlab(final int sizeClassIndex) {
+		int victim = UNASSIGNED;
+
+		for (int i = 0; i < mSlabs.size(); i++) {
+			if (mSlabs.get(i).mUsed == 0) {
+				victim = i;
+				break;
+			}
+		}
+
+		if (victim == UNASSIGNED) {
+			// take the slab of the least recently used entry and drop all other entries in that slab
+			Entry<K> eldest = null;
+			for (SizeClass<K> sizeClass : mSizeClasses) {
+				if (sizeClass.mHead != null && (eldest == null || sizeClass.mHead.mAccess < eldest.mAccess)) {
+					eldest = sizeClass.mHead;
+				}
+			}
+
+			victim = eldest.mSlab;
+
+			Entry<K> entry = mSizeClasses[eldest.mSizeClass].mHead;
+			while (entry != null) {
+				final Entry<K> next = entry.mNext;
+
+				if (entry.mSlab == victim) {
+					evict(entry);
+				}
+
+				entry = next;
+			}
+		}
+
+		// withdraw the free chunks of the slab from its previous size class
+		final SizeClass<K> previous = mSizeClasses[mSlabs.get(victim).mSizeClass];
+		int count = 0;
+		for (int i = 0; i < previous.mFreeCount; i++) {
+			if (getSlab(previous.mFree[i]) != victim) {
+				previous.mFree[count++] = previous.mFree[i];
+			}
+		}
+		previous.mFreeCount = count;
+
+		assign(victim, sizeClassIndex);
+	}
+
+	/** Assigns the given slab to the given size class and adds all of its chunks to the free chunks (requires the monitor) */
+	private void assign(final int slabIndex, final int sizeClassIndex) {
+		final SizeClass<K> sizeClass = mSizeClasses[sizeClassIndex];
+		mSlabs.get(slabIndex).mSizeClass = sizeClassIndex;
+
+		// add the chunks in reverse order so that they are handed out from the start of the slab
+		for (int i = sizeClass.mChunksPerSlab - 1; i >= 0; i--) {
+			sizeClass.pushFree(getChunk(slabIndex, i * sizeClass.mChunkSize));
+		}
+	}
+
+	/** Drops the given entry due to a lack of space (requires the monitor) */
+	private void evict(final Entry<K> entry) {
+		mIndex.remove(entry.mKey);
+		release(entry, false);
+
+		if (mNotifiesRemovals) {
+			mRemovals.add(new Removal<K>(entry.mKey, read(entry), false));
+		}
+	}
+
+	/** Unlinks the given entry and frees its chunk, optionally recording the removal for notification (requires the monitor) */
+	private void release(final Entry<K> entry, final boolean notify) {
+		final SizeClass<K> sizeClass = mSizeClasses[entry.mSizeClass];
+		sizeClass.unlink(entry);
+		sizeClass.pushFree(getChunk(entry.mSlab, entry.mOffset));
+		mSlabs.get(entry.mSlab).mUsed--;
+		mBytes -= entry.mLength;
+
+		// the chunk is not overwritten before the lock is released, so the value can still be read here
+		if (notify && mNotifiesRemovals) {
+			mRemovals.add(new Removal<K>(entry.mKey, read(entry), true));
+		}
+	}
+
+	/** Decodes the removed values and passes them to `onEntryRemoved(...)` outside of the lock */
+	private void deliverRemovals() {
+		final Removal<K>[] removals;
+
+		synchronized (this) {
+			if (mRemovals.isEmpty()) {
+				return;
+			}
+
+			@SuppressWarnings("unchecked")
+			final Removal<K>[] array = mRemovals.toArray(new Removal[mRemovals.size()]);
+			removals = array;
+			mRemovals.clear();
+		}
+
+		for (Removal<K> removal : removals) {
+			onEntryRemoved(removal.mKey, mValueCodec.decode(removal.mValueBytes), removal.mCausedManually);
+		}
+	}
+
+	/** Returns the smallest size class whose chunks can hold the given number of bytes */
+	private int getSizeClass(final int length) {
+		int low = 0;
+		int high = mSizeClasses.length - 1;
+
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+
+			if (mSizeClasses[middle].mChunkSize < length) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	private static long getChunk(final int slabIndex, final int offset) {
+		return ((long) slabIndex << 32) | offset;
+	}
+
+	private static int getSlab(final long chunk) {
+		return (int) (chunk >>> 32);
+	}
+
+	private static int getOffset(final long chunk) {
+		return (int) chunk;
+	}
+
+	private static boolean overridesOnEntryRemoved(final Class<?> type) {
+		try {
+			return type.getMethod("onEntryRemoved", Object.class, Object.class, boolean.class).getDeclaringClass() != OffHeapCache.class;
+		}
+		catch (NoSuchMethodException e) {
+			return true;
+		}
+	}
+
+	/** Location of an encoded value along with its position in the list of its size class */
+	private static class Entry<K> {
+
+		private final K mKey;
+		private final int mSizeClass;
+		private final int mSlab;
+		private final int mOffset;
+		private final int mLength;
+		private long mAccess;
+		private Entry<K> mPrev;
+		private Entry<K> mNext;
+
+		public Entry(final K key, final int sizeClass, final int slab, final int offset, final int length) {
+			mKey = key;
+			mSizeClass = sizeClass;
+			mSlab = slab;
+			mOffset = offset;
+			mLength = length;
+		}
+
+	}
+
+	/** Chunks of a single size along with the list of entries from the least recently to the most recently used one */
+	private static class SizeClass<K> {
+
+		private final int mChunkSize;
+		private final int mChunksPerSlab;
+		private long[] mFree;
+		private int mFreeCount;
+		private Entry<K> mHead;
+		private Entry<K> mTail;
+
+		public SizeClass(final int chunkSize, final int chunksPerSlab) {
+			mChunkSize = chunkSize;
+			mChunksPerSlab = chunksPerSlab;
+			mFree = new long[chunksPerSlab];
+		}
+
+		public void pushFree(final long chunk) {
+			if (mFreeCount == mFree.length) {
+				final long[] free = new long[mFree.length * 2];
+				System.arraycopy(mFree, 0, free, 0, mFreeCount);
+				mFree = free;
+			}
+
+			mFree[mFreeCount++] = chunk;
+		}
+
+		public void linkLast(final Entry<K> entry) {
+			entry.mPrev = mTail;
+			entry.mNext = null;
+
+			if (mTail == null) {
+				mHead = entry;
+			}
+			else {
+				mTail.mNext = entry;
+			}
+
+			mTail = entry;
+		}
+
+		public void unlink(final Entry<K> entry) {
+			if (entry.mPrev == null) {
+				mHead = entry.mNext;
+			}
+			else {
+				entry.mPrev.mNext = entry.mNext;
+			}
+
+			if (entry.mNext == null) {
+				mTail = entry.mPrev;
+			}
+			else {
+				entry.mNext.mPrev = entry.mPrev;
+			}
+
+			entry.mPrev = null;
+			entry.mNext = null;
+		}
+
+	}
+
+	/** Direct buffer that is divided into chunks of a single size class */
+	private static class Slab {
+
+		private final ByteBuffer mBuffer;
+		private int mSizeClass;
+		/** The number of chunks that hold values */
+		private int mUsed;
+
+		public Slab(final ByteBuffer buffer) {
+			mBuffer = buffer;
+			mSizeClass = UNASSIGNED;
+		}
+
+	}
+
+	/** Removed entry whose value is yet to be decoded and passed to `onEntryRemoved(...)` */
+	private static class Removal<K> {
+
+		private final K mKey;
+		private final byte[] mValueBytes;
+		private final boolean mCausedManually;
+
+		public Removal(final K key, final byte[] valueBytes, final boolean causedManually) {
+			mKey = key;
+			mValueBytes = valueBytes;
+			mCausedManually = causedManually;
+		}
+
+	}
+
+}
@@ -0,0 +1,134 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Striped and lossy ring buffer that records elements from many producer threads without blocking
+ *
+ * Each thread is mapped to one of several stripes, so that producers rarely compete for the same slot
+ *
+ * If a stripe is full or contended, the element is dropped instead of waiting
+ *
+ * Only a single consumer may drain the buffer at a time, which must be guaranteed by the caller
+ *
+ * @param <E> the type of the elements
+ */
+final class ReadBuffer<E> {
+
+	/** Number of elements per stripe (must be a power of two) */
+	private static final int STRIPE_CAPACITY = 32;
+	private static final int STRIPE_SHIFT = 5;
+	private static final int STRIPE_MASK = STRIPE_CAPACITY - 1;
+	/** Number of recorded elements in a stripe after which draining is recommended */
+	private static final int DRAIN_THRESHOLD = STRIPE_CAPACITY / 2;
+	private static final int MAX_STRIPES = 32;
+	/** Spacing between the counters of neighboring stripes to avoid false sharing of cache lines */
+	private static final int COUNTER_SHIFT = 3;
+	private final int mStripeMask;
+	private final AtomicReferenceArray<E> mElements;
+	private final AtomicLongArray mWriteCounts;
+	private final AtomicLongArray mReadCounts;
+
+	/** Receives the elements while the buffer is drained */
+	public static interface Sink<E> {
+		public void accept(E element);
+	}
+
+	public ReadBuffer() {
+		int stripes = 1;
+		final int target = Math.min(Runtime.getRuntime().availableProcessors() * 2, MAX_STRIPES);
+		while (stripes < target) {
+			stripes <<= 1;
+		}
+
+		mStripeMask = stripes - 1;
+		mElements = new AtomicReferenceArray<E>(stripes << STRIPE_SHIFT);
+		mWriteCounts = new AtomicLongArray(stripes << COUNTER_SHIFT);
+		mReadCounts = new AtomicLongArray(stripes << COUNTER_SHIFT);
+	}
+
+	/**
+	 * Records the given element in the stripe of the current thread
+	 *
+	 * @param element the element to record
+	 * @return whether the buffer should be drained soon
+	 */
+	public boolean offer(final E element) {
+		final int stripe = stripeForCurrentThread();
+		final int counterIndex = stripe << COUNTER_SHIFT;
+		final long tail = mWriteCounts.get(counterIndex);
+		final long size = tail - mReadCounts.get(counterIndex);
+
+		// if the stripe is full, drop the element and ask for the buffer to be drained
+		if (size >= STRIPE_CAPACITY) {
+			return true;
+		}
+
+		// if another thread has claimed the slot concurrently, drop the element as well
+		if (!mWriteCounts.compareAndSet(counterIndex, tail, tail + 1)) {
+			return false;
+		}
+
+		mElements.lazySet((stripe << STRIPE_SHIFT) + (int) (tail & STRIPE_MASK), element);
+
+		return size + 1 >= DRAIN_THRESHOLD;
+	}
+
+	/**
+	 * Removes all published elements from the buffer and passes them to the given sink
+	 *
+	 * This must not be called by more than one thread at a time
+	 *
+	 * @param sink the sink to pass the elements to
+	 */
+	public void drainTo(final Sink<E> sink) {
+		final int stripes = mStripeMask + 1;
+
+		for (int stripe = 0; stripe < stripes; stripe++) {
+			final int counterIndex = stripe << COUNTER_SHIFT;
+			final long tail = mWriteCounts.get(counterIndex);
+			long head = mReadCounts.get(counterIndex);
+
+			while (head < tail) {
+				final int index = (stripe << STRIPE_SHIFT) + (int) (head & STRIPE_MASK);
+				final E element = mElements.get(index);
+
+				// the slot has been claimed but the element has not been published yet
+				if (element == null) {
+					break;
+				}
+
+				mElements.lazySet(index, null);
+				sink.accept(element);
+				head++;
+			}
+
+			mReadCounts.lazySet(counterIndex, head);
+		}
+	}
+
+	private int stripeForCurrentThread() {
+		// scramble the thread ID so that consecutive IDs are distributed evenly
+		final long id = Thread.currentThread().getId();
+
+		return ((int) (id * 0x9E3779B9L) >>> 16) & mStripeMask;
+	}
+
+}
@@ -0,0 +1,649 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Cache whose index and values are stored in a memory-mapped file, so that multiple processes can share the same entries without any IPC
+ *
+ * The file is divided into slots of a fixed size, which form a hash table, and each entry (i.e. its encoded key and value) must fit into a single slot
+ *
+ * The processes coordinate through locks on the file, where lookups share the lock while modifications hold it exclusively
+ *
+ * If the cache is full and a new entry is added, one of the least recently used entries is dropped, as determined from a small sample of entries
+ *
+ * Every process that opens the file must use the same number of entries and the same entry size
+ *
+ * Each entry carries a checksum, and a process that is killed while modifying the file leaves a mark behind, so that the next process to use the file drops any incomplete or duplicate entries first
+ *
+ * This implementation is thread-safe, but you must use a single instance per file within each process
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class SharedCache<K, V> {
+
+	private static final int MAGIC = 0x53484331;
+	private static final int VERSION = 2;
+	/** Size of the file header, consisting of the magic number, the version, the number of slots, the size of the slots, the number of entries, the modification mark and the clock */
+	private static final int HEADER_SIZE = 32;
+	private static final int HEADER_SLOT_COUNT = 8;
+	private static final int HEADER_SLOT_SIZE = 12;
+	private static final int HEADER_COUNT = 16;
+	/** Non-zero while a modification is in progress, so that it remains set if the process is killed in the middle of it */
+	private static final int HEADER_DIRTY = 20;
+	private static final int HEADER_CLOCK = 24;
+	/** Size of the slot header, consisting of the state, the hash, the key length, the value length, the time of the last access and the checksum, followed by padding */
+	private static final int SLOT_HEADER_SIZE = 32;
+	private static final int SLOT_HASH = 4;
+	private static final int SLOT_KEY_LENGTH = 8;
+	private static final int SLOT_VALUE_LENGTH = 12;
+	private static final int SLOT_ACCESS = 16;
+	/** The checksum of the hash, the lengths, the key and the value, which excludes the state and the time of the last access */
+	private static final int SLOT_CHECKSUM = 24;
+	private static final int STATE_EMPTY = 0;
+	private static final int STATE_USED = 1;
+	/** The number of entries that are compared to find an entry to drop */
+	private static final int EVICTION_SAMPLE_SIZE = 8;
+	private final int mMaximumEntries;
+	private final int mSlotCount;
+	private final int mSlotSize;
+	private final Cache.Codec<K> mKeyCodec;
+	private final Cache.Codec<V> mValueCodec;
+	private final RandomAccessFile mRandomAccessFile;
+	private final FileChannel mChannel;
+	private final MappedByteBuffer mBuffer;
+	private final Random mRandom;
+
+	/**
+	 * Opens the cache in the given file or creates a new cache if the file does not exist
+	 *
+	 * @param file the file to store the cache in
+	 * @param maximumEntries the maximum number of entries
+	 * @param maximumEntrySize the maximum size of an encoded key and its encoded value together in bytes
+	 * @param keyCodec the codec to convert keys to bytes and back
+	 * @param valueCodec the codec to convert values to bytes and back
+	 * @throws IOException if the file cannot be opened or has been created with a different number of entries or entry size
+	 */
+	public SharedCache(final File file, final int maximumEntries, final int maximumEntrySize, final Cache.Codec<K> keyCodec, final Cache.Codec<V> valueCodec) throws IOException {
+		if (file == null) {
+			throw new RuntimeException("file must not be null");
+		}
+
+		if (maximumEntries < 1) {
+			throw new RuntimeException("maximumEntries must be positive");
+		}
+
+		if (maximumEntrySize < 1) {
+			throw new RuntimeException("maximumEntrySize must be positive");
+		}
+
+		if (keyCodec == null || valueCodec == null) {
+			throw new RuntimeException("codecs must not be null");
+		}
+
+		// keep the hash table at most half full so that the probe sequences stay short
+		int slotCount = 2;
+		while (slotCount < maximumEntries * 2L) {
+			slotCount <<= 1;
+		}
+
+		final long fileSize = HEADER_SIZE + (long) slotCount * (SLOT_HEADER_SIZE + maximumEntrySize);
+
+		if (fileSize > Integer.MAX_VALUE) {
+			throw new RuntimeException("maximumEntries and maximumEntrySize are too large");
+		}
+
+		mMaximumEntries = maximumEntries;
+		mSlotCount = slotCount;
+		mSlotSize = SLOT_HEADER_SIZE + maximumEntrySize;
+		mKeyCodec = keyCodec;
+		mValueCodec = valueCodec;
+		mRandom = new Random();
+
+		mRandomAccessFile = new RandomAccessFile(file, "rw");
+		mChannel = mRandomAccessFile.getChannel();
+
+		try {
+			// the first process to open the file sets it up while the others wait
+			final FileLock lock = mChannel.lock();
+
+			try {
+				mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+
+				if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+					mBuffer.putInt(HEADER_SLOT_COUNT, mSlotCount);
+					mBuffer.putInt(HEADER_SLOT_SIZE, mSlotSize);
+					clearSlots();
+					mBuffer.putInt(HEADER_DIRTY, 0);
+					mBuffer.putInt(0, MAGIC);
+					mBuffer.putInt(4, VERSION);
+				}
+				else if (mBuffer.getInt(HEADER_SLOT_COUNT) != mSlotCount || mBuffer.getInt(HEADER_SLOT_SIZE) != mSlotSize) {
+					throw new IOException("The file has been created with a different number of entries or entry size: "+file);
+				}
+			}
+			finally {
+				lock.release();
+			}
+		}
+		catch (IOException e) {
+			mRandomAccessFile.close();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Stores the given entry and replaces any previous value with the same key
+	 *
+	 * @param key the key to save the value for
+	 * @param value the value to save
+	 * @return whether the entry has been stored, which fails if the entry is larger than the maximum entry size
+	 */
+	public boolean put(final K key, final V value) {
+		// encode the entry before acquiring the locks
+		final byte[] keyBytes = mKeyCodec.encode(key);
+		final byte[] valueBytes = mValueCodec.encode(value);
+		final int hash = hash(keyBytes);
+		final boolean fits = SLOT_HEADER_SIZE + keyBytes.length + valueBytes.length <= mSlotSize;
+
+		synchronized (this) {
+			final FileLock lock = lockForWriting();
+
+			try {
+				int slot = findSlot(keyBytes, hash);
+
+				if (!fits) {
+					// do not leave an outdated value behind
+					if (isUsed(slot)) {
+						deleteSlot(slot);
+					}
+
+					markClean();
+
+					return false;
+				}
+
+				final boolean inserted = !isUsed(slot);
+
+				if (inserted && mBuffer.getInt(HEADER_COUNT) >= mMaximumEntries) {
+					evictOne();
+
+					// the slot for the new key may have moved due to the removal
+					slot = findSlot(keyBytes, hash);
+				}
+
+				final int offset = offsetOf(slot);
+				mBuffer.putInt(offset + SLOT_HASH, hash);
+				mBuffer.putInt(offset + SLOT_KEY_LENGTH, keyBytes.length);
+				mBuffer.putInt(offset + SLOT_VALUE_LENGTH, valueBytes.length);
+				mBuffer.putLong(offset + SLOT_ACCESS, tick());
+				write(offset + SLOT_HEADER_SIZE, keyBytes);
+				write(offset + SLOT_HEADER_SIZE + keyBytes.length, valueBytes);
+				mBuffer.putInt(offset + SLOT_CHECKSUM, checksum(offset, keyBytes.length, valueBytes.length));
+
+				// a new slot is marked as used only once the entry is complete, while an overwritten entry that is incomplete fails its checksum
+				if (inserted) {
+					mBuffer.putInt(offset, STATE_USED);
+					mBuffer.putInt(HEADER_COUNT, mBuffer.getInt(HEADER_COUNT) + 1);
+				}
+
+				markClean();
+
+				return true;
+			}
+			finally {
+				release(lock);
+			}
+		}
+	}
+
+	/**
+	 * Returns the value for the given key
+	 *
+	 * @param key the key to look up
+	 * @return the value that was found for the key or `null`
+	 */
+	public V get(final K key) {
+		final byte[] keyBytes = mKeyCodec.encode(key);
+		final int hash = hash(keyBytes);
+		final byte[] valueBytes;
+
+		synchronized (this) {
+			final FileLock lock = lockForReading();
+
+			try {
+				final int slot = findSlot(keyBytes, hash);
+
+				if (!isUsed(slot)) {
+					return null;
+				}
+
+				final int offset = offsetOf(slot);
+				final int valueLength = mBuffer.getInt(offset + SLOT_VALUE_LENGTH);
+
+				// an entry that has been damaged otherwise, e.g. by a power failure, counts as missing
+				if (!hasValidLengths(keyBytes.length, valueLength) || mBuffer.getInt(offset + SLOT_CHECKSUM) != checksum(offset, keyBytes.length, valueLength)) {
+					return null;
+				}
+
+				valueBytes = read(offset + SLOT_HEADER_SIZE + keyBytes.length, valueLength);
+
+				// processes that read at the same time may overwrite each other's access times, which only makes the order of evictions less precise
+				mBuffer.putLong(offset + SLOT_ACCESS, tick());
+			}
+			finally {
+				release(lock);
+			}
+		}
+
+		// decode the value after releasing the locks
+		return mValueCodec.decode(valueBytes);
+	}
+
+	/**
+	 * Removes the entry with the specified key
+	 *
+	 * @param key the key to remove
+	 * @return the old value for the specified key or `null`
+	 */
+	public V remove(final K key) {
+		final byte[] keyBytes = mKeyCodec.encode(key);
+		final int hash = hash(keyBytes);
+		final byte[] valueBytes;
+
+		synchronized (this) {
+			final FileLock lock = lockForWriting();
+
+			try {
+				final int slot = findSlot(keyBytes, hash);
+
+				if (!isUsed(slot)) {
+					markClean();
+
+					return null;
+				}
+
+				final int offset = offsetOf(slot);
+				valueBytes = read(offset + SLOT_HEADER_SIZE + keyBytes.length, mBuffer.getInt(offset + SLOT_VALUE_LENGTH));
+				deleteSlot(slot);
+				markClean();
+			}
+			finally {
+				release(lock);
+			}
+		}
+
+		return mValueCodec.decode(valueBytes);
+	}
+
+	/**
+	 * Returns whether there is an entry for the given key
+	 *
+	 * @param key the key to look up
+	 * @return whether an entry exists
+	 */
+	public boolean contains(final K key) {
+		final byte[] keyBytes = mKeyCodec.encode(key);
+		final int hash = hash(keyBytes);
+
+		synchronized (this) {
+			final FileLock lock = lockForReading();
+
+			try {
+				return isUsed(findSlot(keyBytes, hash));
+			}
+			finally {
+				release(lock);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of entries
+	 *
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		final FileLock lock = lockForReading();
+
+		try {
+			return mBuffer.getInt(HEADER_COUNT);
+		}
+		finally {
+			release(lock);
+		}
+	}
+
+	/** Removes all entries */
+	public synchronized void clear() {
+		final FileLock lock = lockForWriting();
+
+		try {
+			clearSlots();
+			markClean();
+		}
+		finally {
+			release(lock);
+		}
+	}
+
+	/**
+	 * Writes all changes to the storage device and releases the file
+	 *
+	 * The instance must not be used anymore afterwards
+	 */
+	public synchronized void close() {
+		mBuffer.force();
+
+		try {
+			mRandomAccessFile.close();
+		}
+		catch (IOException e) { }
+	}
+
+	/** Acquires the lock on the file, which is shared between readers but exclusive for writers (requires the monitor) */
+	private FileLock lock(final boolean shared) {
+		try {
+			return mChannel.lock(0, Long.MAX_VALUE, shared);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Could not lock the file", e);
+		}
+	}
+
+	/** Acquires the shared lock, or the exclusive lock if the file has to be repaired first (requires the monitor) */
+	private FileLock lockForReading() {
+		final FileLock lock = lock(true);
+
+		if (mBuffer.getInt(HEADER_DIRTY) == 0) {
+			return lock;
+		}
+
+		// another process has been killed while modifying the file, which only a writer can repair
+		release(lock);
+
+		final FileLock exclusiveLock = lock(false);
+
+		if (mBuffer.getInt(HEADER_DIRTY) != 0) {
+			repair();
+			markClean();
+		}
+
+		return exclusiveLock;
+	}
+
+	/** Acquires the exclusive lock, repairs the file if necessary and marks the start of a modification, which must be ended by `markClean()` (requires the monitor) */
+	private FileLock lockForWriting() {
+		final FileLock lock = lock(false);
+
+		if (mBuffer.getInt(HEADER_DIRTY) != 0) {
+			repair();
+		}
+
+		mBuffer.putInt(HEADER_DIRTY, 1);
+
+		return lock;
+	}
+
+	/** Marks the end of a modification (requires the exclusive lock) */
+	private void markClean() {
+		mBuffer.putInt(HEADER_DIRTY, 0);
+	}
+
+	private static void release(final FileLock lock) {
+		try {
+			lock.release();
+		}
+		catch (IOException e) { }
+	}
+
+	/** Returns the slot of the given key, or the empty slot where the key would be inserted (requires the lock) */
+	private int findSlot(final byte[] keyBytes, final int hash) {
+		final int mask = mSlotCount - 1;
+		int slot = hash & mask;
+
+		while (isUsed(slot)) {
+			final int offset = offsetOf(slot);
+
+			if (mBuffer.getInt(offset + SLOT_HASH) == hash && mBuffer.getInt(offset + SLOT_KEY_LENGTH) == keyBytes.length && equalsAt(offset + SLOT_HEADER_SIZE, keyBytes)) {
+				break;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+	/** Drops one of the least recently used entries from a sample of the entries (requires the exclusive lock) */
+	private void evictOne() {
+		final int mask = mSlotCount - 1;
+		int slot = mRandom.nextInt(mSlotCount);
+		int victim = -1;
+		long victimAccess = Long.MAX_VALUE;
+		int sampled = 0;
+
+		// the table is full and thus at most half of the slots are empty, so the scan ends quickly
+		for (int i = 0; i < mSlotCount && sampled < EVICTION_SAMPLE_SIZE; i++) {
+			if (isUsed(slot)) {
+				final long access = mBuffer.getLong(offsetOf(slot) + SLOT_ACCESS);
+
+				if (access < victimAccess) {
+					victim = slot;
+					victimAccess = access;
+				}
+
+				sampled++;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		if (victim >= 0) {
+			deleteSlot(victim);
+		}
+	}
+
+	/** Removes the entry in the given slot and moves the following entries back so that all entries remain reachable (requires the exclusive lock) */
+	private void deleteSlot(final int slot) {
+		final int mask = mSlotCount - 1;
+		int gap = slot;
+		int current = (gap + 1) & mask;
+
+		while (isUsed(current)) {
+			final int ideal = mBuffer.getInt(offsetOf(current) + SLOT_HASH) & mask;
+
+			if (((current - ideal) & mask) >= ((current - gap) & mask)) {
+				copySlot(current, gap);
+				gap = current;
+			}
+
+			current = (current + 1) & mask;
+		}
+
+		mBuffer.putInt(offsetOf(gap), STATE_EMPTY);
+		mBuffer.putInt(HEADER_COUNT, mBuffer.getInt(HEADER_COUNT) - 1);
+	}
+
+	private void copySlot(final int from, final int to) {
+		final int fromOffset = offsetOf(from);
+		final int length = SLOT_HEADER_SIZE + mBuffer.getInt(fromOffset + SLOT_KEY_LENGTH) + mBuffer.getInt(fromOffset + SLOT_VALUE_LENGTH);
+
+		final ByteBuffer source = mBuffer.duplicate();
+		source.position(fromOffset);
+		source.limit(fromOffset + length);
+
+		final ByteBuffer target = mBuffer.duplicate();
+		target.position(offsetOf(to));
+		target.put(source);
+	}
+
+	/**
+	 * Drops the entries that a process may have left incomplete or duplicated when it has been killed while modifying the file, and counts the entries again (requires the exclusive lock)
+	 *
+	 * Removing an entry moves the following entries back, possibly across the end of the table, so each phase is repeated until it finds nothing to remove
+	 */
+	private void repair() {
+		boolean removed = true;
+		while (removed) {
+			removed = false;
+
+			for (int slot = 0; slot < mSlotCount; slot++) {
+				while (isUsed(slot) && !isIntact(slot)) {
+					deleteSlot(slot);
+					removed = true;
+				}
+			}
+		}
+
+		// an entry that has been moved back while deleting another entry may exist twice, where the first copy is the one that is found
+		removed = true;
+		while (removed) {
+			removed = false;
+
+			for (int slot = 0; slot < mSlotCount; slot++) {
+				while (isUsed(slot)) {
+					final int offset = offsetOf(slot);
+					final byte[] keyBytes = read(offset + SLOT_HEADER_SIZE, mBuffer.getInt(offset + SLOT_KEY_LENGTH));
+
+					if (findSlot(keyBytes, hash(keyBytes)) == slot) {
+						break;
+					}
+
+					deleteSlot(slot);
+					removed = true;
+				}
+			}
+		}
+
+		int count = 0;
+		for (int slot = 0; slot < mSlotCount; slot++) {
+			if (isUsed(slot)) {
+				count++;
+			}
+		}
+
+		mBuffer.putInt(HEADER_COUNT, count);
+	}
+
+	/** Returns whether the entry in the given slot is complete and matches its checksum (requires the lock) */
+	private boolean isIntact(final int slot) {
+		final int offset = offsetOf(slot);
+		final int keyLength = mBuffer.getInt(offset + SLOT_KEY_LENGTH);
+		final int valueLength = mBuffer.getInt(offset + SLOT_VALUE_LENGTH);
+
+		if (!hasValidLengths(keyLength, valueLength)) {
+			return false;
+		}
+
+		if (mBuffer.getInt(offset + SLOT_HASH) != hash(read(offset + SLOT_HEADER_SIZE, keyLength))) {
+			return false;
+		}
+
+		return mBuffer.getInt(offset + SLOT_CHECKSUM) == checksum(offset, keyLength, valueLength);
+	}
+
+	private boolean hasValidLengths(final int keyLength, final int valueLength) {
+		return keyLength >= 0 && valueLength >= 0 && (long) SLOT_HEADER_SIZE + keyLength + valueLength <= mSlotSize;
+	}
+
+	/** Calculates the checksum of the entry at the given offset from its hash, its lengths, its key and its value */
+	private int checksum(final int offset, final int keyLength, final int valueLength) {
+		final CRC32 crc = new CRC32();
+		crc.update(read(offset + SLOT_HASH, 12));
+		crc.update(read(offset + SLOT_HEADER_SIZE, keyLength + valueLength));
+
+		return (int) crc.getValue();
+	}
+
+	/** Marks all slots as empty (requires the exclusive lock) */
+	private void clearSlots() {
+		for (int slot = 0; slot < mSlotCount; slot++) {
+			mBuffer.putInt(offsetOf(slot), STATE_EMPTY);
+		}
+
+		mBuffer.putInt(HEADER_COUNT, 0);
+		mBuffer.putLong(HEADER_CLOCK, 0);
+	}
+
+	/** Advances the shared clock that orders the accesses across all processes */
+	private long tick() {
+		final long clock = mBuffer.getLong(HEADER_CLOCK) + 1;
+		mBuffer.putLong(HEADER_CLOCK, clock);
+
+		return clock;
+	}
+
+	private boolean isUsed(final int slot) {
+		return mBuffer.getInt(offsetOf(slot)) == STATE_USED;
+	}
+
+	private int offsetOf(final int slot) {
+		return HEADER_SIZE + slot * mSlotSize;
+	}
+
+	private boolean equalsAt(final int offset, final byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (mBuffer.get(offset + i) != bytes[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private byte[] read(final int offset, final int length) {
+		final byte[] out = new byte[length];
+
+		final ByteBuffer buffer = mBuffer.duplicate();
+		buffer.position(offset);
+		buffer.get(out);
+
+		return out;
+	}
+
+	private void write(final int offset, final byte[] bytes) {
+		final ByteBuffer buffer = mBuffer.duplicate();
+		buffer.position(offset);
+		buffer.put(bytes);
+	}
+
+	/** Returns a hash of the encoded key that is the same in all processes */
+	private static int hash(final byte[] keyBytes) {
+		int hash = 1;
+
+		for (byte b : keyBytes) {
+			hash = 31 * hash + b;
+		}
+
+		hash *= 0x9e3779b9;
+
+		return hash ^ (hash >>> 16);
+	}
+
+}
@@ -0,0 +1,205 @@
+package im.delight.android.commons;
+
+/*
+ * Copyright (c) delight.im <info@delight.im>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Hierarchical timing wheel that schedules the expiration of cache entries
+ *
+ * Each level consists of buckets that cover a fixed span of time, where the spans grow from about one second to about one week
+ *
+ * Entries are scheduled in the coarsest bucket that fits their remaining time and cascade down to finer buckets as time passes
+ *
+ * Scheduling, rescheduling and expiring an entry thus take amortized constant time without ever scanning all entries
+ *
+ * This implementation is not thread-safe and must be guarded by the cache's lock
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+final class TimerWheel<K, V> {
+
+	/** The number of buckets on each level */
+	private static final int[] BUCKETS = { 64, 64, 32, 4, 1 };
+	/** The time that a single bucket on each level covers, as a power of two nanoseconds (~1.07s, ~1.14m, ~1.22h, ~1.63d, ~6.5d) */
+	private static final int[] SHIFTS = { 30, 36, 42, 47, 49 };
+	private final Cache.Node<K, V>[][] mWheel;
+	private final Listener<K, V> mListener;
+	/** Sentinel of the entries that are currently being passed to the listener */
+	private final Cache.Node<K, V> mPending;
+	/** The time (in nanoseconds) that the wheel has been advanced to */
+	private long mNanos;
+	/** Whether the wheel is currently being advanced, which may not be nested through the listener */
+	private boolean mAdvancing;
+
+	/** Receives the entries whose buckets have expired */
+	public static interface Listener<K, V> {
+
+		/**
+		 * Called when the bucket of the given entry has expired
+		 *
+		 * If the entry is not due yet, the listener must update the deadline of the entry, which is then scheduled again
+		 *
+		 * @param node the entry whose bucket has expired
+		 * @param now the current time in nanoseconds
+		 * @return whether the entry has been removed or does not have to be scheduled again
+		 */
+		public boolean onTimerExpired(Cache.Node<K, V> node, long now);
+
+	}
+
+	@SuppressWarnings("unchecked")
+	public TimerWheel(final Listener<K, V> listener, final long nanos) {
+		mListener = listener;
+		mPending = createSentinel();
+		mNanos = nanos;
+		mWheel = (Cache.Node<K, V>[][]) new Cache.Node<?, ?>[BUCKETS.length][];
+
+		for (int level = 0; level < BUCKETS.length; level++) {
+			mWheel[level] = (Cache.Node<K, V>[]) new Cache.Node<?, ?>[BUCKETS[level]];
+
+			for (int bucket = 0; bucket < BUCKETS[level]; bucket++) {
+				mWheel[level][bucket] = createSentinel();
+			}
+		}
+	}
+
+	/**
+	 * Schedules the given entry for its current deadline, replacing any previous schedule
+	 *
+	 * @param node the entry to schedule
+	 */
+	public void schedule(final Cache.Node<K, V> node) {
+		if (node.mTimerNext != null) {
+			unlink(node);
+		}
+
+		final Cache.Node<K, V> sentinel = findBucket(node.mTimerDeadline);
+		node.mTimerPrev = sentinel.mTimerPrev;
+		node.mTimerNext = sentinel;
+		sentinel.mTimerPrev.mTimerNext = node;
+		sentinel.mTimerPrev = node;
+	}
+
+	/**
+	 * Removes the given entry from the wheel if it has been scheduled
+	 *
+	 * @param node the entry to remove
+	 */
+	public void deschedule(final Cache.Node<K, V> node) {
+		if (node.mTimerNext != null) {
+			unlink(node);
+		}
+	}
+
+	/**
+	 * Advances the wheel to the given time and passes all entries from the buckets that have expired to the listener
+	 *
+	 * @param now the current time in nanoseconds
+	 */
+	public void advance(final long now) {
+		if (mAdvancing) {
+			return;
+		}
+
+		mAdvancing = true;
+
+		try {
+			final long previous = mNanos;
+			mNanos = now;
+
+			for (int level = 0; level < SHIFTS.length; level++) {
+				final long previousTicks = previous >>> SHIFTS[level];
+				final long currentTicks = now >>> SHIFTS[level];
+				final long delta = currentTicks - previousTicks;
+
+				// if no bucket has expired on this level, no bucket on a coarser level can have expired either
+				if (delta <= 0) {
+					break;
+				}
+
+				expire(level, previousTicks, delta);
+			}
+		}
+		finally {
+			mAdvancing = false;
+		}
+	}
+
+	private void expire(final int level, final long previousTicks, final long delta) {
+		final Cache.Node<K, V>[] buckets = mWheel[level];
+		final int mask = buckets.length - 1;
+		final int steps = (int) Math.min(delta + 1, buckets.length);
+		final int start = (int) (previousTicks & mask);
+
+		for (int i = start; i < start + steps; i++) {
+			final Cache.Node<K, V> sentinel = buckets[i & mask];
+
+			if (sentinel.mTimerNext == sentinel) {
+				continue;
+			}
+
+			// move the whole bucket to the pending list first so that entries may be scheduled again (or removed by the listener) meanwhile
+			mPending.mTimerNext = sentinel.mTimerNext;
+			mPending.mTimerPrev = sentinel.mTimerPrev;
+			mPending.mTimerNext.mTimerPrev = mPending;
+			mPending.mTimerPrev.mTimerNext = mPending;
+			sentinel.mTimerPrev = sentinel;
+			sentinel.mTimerNext = sentinel;
+
+			while (mPending.mTimerNext != mPending) {
+				final Cache.Node<K, V> node = mPending.mTimerNext;
+				unlink(node);
+
+				if (!mListener.onTimerExpired(node, mNanos)) {
+					schedule(node);
+				}
+			}
+		}
+	}
+
+	private Cache.Node<K, V> findBucket(final long deadline) {
+		// entries that are already due are placed in the current bucket, which is processed next
+		final long duration = Math.max(deadline - mNanos, 0);
+		final long time = mNanos + duration;
+
+		for (int level = 0; level < SHIFTS.length - 1; level++) {
+			if (duration < (1L << SHIFTS[level + 1])) {
+				final long ticks = time >>> SHIFTS[level];
+
+				return mWheel[level][(int) (ticks & (BUCKETS[level] - 1))];
+			}
+		}
+
+		return mWheel[SHIFTS.length - 1][0];
+	}
+
+	private static <K, V> Cache.Node<K, V> createSentinel() {
+		final Cache.Node<K, V> sentinel = new Cache.Node<K, V>(null, null, 0);
+		sentinel.mTimerPrev = sentinel;
+		sentinel.mTimerNext = sentinel;
+
+		return sentinel;
+	}
+
+	private static <K, V> void unlink(final Cache.Node<K, V> node) {
+		node.mTimerPrev.mTimerNext = node.mTimerNext;
+		node.mTimerNext.mTimerPrev = node.mTimerPrev;
+		node.mTimerPrev = null;
+		node.mTimerNext = null;
+	}
+
+}
@@ -27,6 +27,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Color;
 import android.text.InputFilter;
 import android.text.Spannable;
@@ -168,6 +169,37 @@ public final class UI {
 		return output;
 	}
 
+	/**
+	 * Generates a screenshot of the specified `View` into a bitmap from the given pool
+	 *
+	 * The bitmap is mutable, and you should return it to the pool once you no longer need it
+	 *
+	 * @param view the `View` component
+	 * @param pool the pool to take the bitmap from or `null` to create a new bitmap
+	 * @return the screenshot
+	 */
+	public static Bitmap getViewScreenshot(final View view, final BitmapPool pool) {
+		if (pool == null) {
+			return getViewScreenshot(view);
+		}
+
+		// set up the drawing cache
+		view.setDrawingCacheEnabled(true);
+		view.setDrawingCacheQuality(View.DRAWING_CACHE_QUALITY_HIGH);
+
+		// get the screenshot and draw it onto a pooled bitmap instead of allocating a copy
+		final Bitmap viewScreenshot = view.getDrawingCache(true);
+		final Bitmap.Config config = viewScreenshot.getConfig() == null ? Bitmap.Config.ARGB_8888 : viewScreenshot.getConfig();
+		final Bitmap output = pool.get(viewScreenshot.getWidth(), viewScreenshot.getHeight(), config);
+		new Canvas(output).drawBitmap(viewScreenshot, 0, 0, null);
+
+		// disable the drawing cache again
+		view.destroyDrawingCache();
+		view.setDrawingCacheEnabled(false);
+
+		return output;
+	}
+
 	/**
 	 * Forces the overflow menu to be shown in the `ActionBar`
 	 *
@@ -49,6 +49,7 @@ public final class ViewScreenshot {
 	private View mView;
 	private String mFilename;
 	private int mFormat;
+	private BitmapPool mPool;
 
 	public static interface Callback {
 		public void onSuccess(File file);
@@ -75,6 +76,7 @@ public final class ViewScreenshot {
 		mView = null;
 		mFilename = null;
 		mFormat = FORMAT_PNG;
+		mPool = null;
 	}
 
 	/**
@@ -125,12 +127,24 @@ public final class ViewScreenshot {
 		return this;
 	}
 
+	/**
+	 * Specifies the pool to take the bitmap for the screenshot from and to return it to after saving
+	 *
+	 * @param pool the pool to use or `null` to create a new bitmap
+	 * @return this instance for chaining
+	 */
+	public ViewScreenshot usingPool(final BitmapPool pool) {
+		mPool = pool;
+
+		return this;
+	}
+
 	/**
 	 * Builds and saves the screenshot
 	 */
 	public void build() {
 		// get the screenshot
-		final Bitmap viewScreenshot = UI.getViewScreenshot(mView);
+		final Bitmap viewScreenshot = UI.getViewScreenshot(mView, mPool);
 
 		new Thread() {
 
@@ -176,6 +190,12 @@ public final class ViewScreenshot {
 
 					});
 				}
+				finally {
+					// the bitmap has been written to the file and can be reused
+					if (mPool != null) {
+						mPool.put(viewScreenshot);
+					}
+				}
 			}
 
 		}.start();